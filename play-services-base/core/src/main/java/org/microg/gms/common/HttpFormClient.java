@@ -30,9 +30,13 @@ import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class HttpFormClient {
     private static final String TAG = "GmsHttpFormClient";
+    // Reuses idle threads instead of starting a new thread for every request
+    private static final ExecutorService asyncExecutor = Executors.newCachedThreadPool();
 
     public static <T> T request(String url, Request request, Class<T> tClass) throws IOException {
         HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
@@ -196,7 +200,7 @@ public class HttpFormClient {
 
     public static <T> void requestAsync(final String url, final Request request, final Class<T> tClass,
                                         final Callback<T> callback) {
-        new Thread(new Runnable() {
+        asyncExecutor.execute(new Runnable() {
             @Override
             public void run() {
                 try {
@@ -205,7 +209,7 @@ public class HttpFormClient {
                     callback.onException(e);
                 }
             }
-        }).start();
+        });
     }
 
     public static abstract class Request {
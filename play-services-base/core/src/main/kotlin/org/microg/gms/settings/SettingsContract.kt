@@ -7,14 +7,19 @@ package org.microg.gms.settings
 
 import android.content.ContentValues
 import android.content.Context
+import android.database.ContentObserver
 import android.database.Cursor
 import android.net.Uri
 import android.os.Binder
+import android.os.Bundle
+import java.util.concurrent.ConcurrentHashMap
 
 object SettingsContract {
     fun getAuthority(context: Context) = "${context.packageName}.microg.settings"
     fun getAuthorityUri(context: Context): Uri = Uri.parse("content://${getAuthority(context)}")
 
+    const val METHOD_UPDATE_BATCH = "updateBatch"
+
     object CheckIn {
         private const val id = "check-in"
         fun getContentUri(context: Context) = Uri.withAppendedPath(getAuthorityUri(context), id)
@@ -130,11 +135,100 @@ object SettingsContract {
         }
     }
 
+    private class CacheEntry(val generation: Long, val value: Any?)
+
+    private val cache = ConcurrentHashMap<List<Any?>, CacheEntry>()
+    private val generations = HashMap<Uri, Long>()
+    private var globalGeneration = 0L
+    private var observer: ContentObserver? = null
+
+    /**
+     * Like [getSettings], but keeps the result in memory until settings in the table of [uri] change, so that
+     * frequent callers don't need to query the provider every time. Changes are noticed through the notifications
+     * sent by [SettingsProvider] and through [setSettings] in this process.
+     *
+     * Results are cached per [uri], [projection] and [key], so every [f] needs a key of its own and must only depend on
+     * the cursor.
+     */
+    @JvmStatic
+    fun <T> getCachedSettings(context: Context, uri: Uri, projection: Array<out String>?, key: String, f: (Cursor) -> T): T {
+        val cacheKey = listOf(uri, projection?.toList(), key)
+        val generation = startObserving(context, uri)
+        val entry = cache[cacheKey]
+        @Suppress("UNCHECKED_CAST")
+        if (entry != null && entry.generation == generation) return entry.value as T
+        val value = getSettings(context, uri, projection, f)
+        synchronized(this) {
+            // Don't cache if settings changed while querying
+            if (getGeneration(uri) == generation) cache[cacheKey] = CacheEntry(generation, value)
+        }
+        return value
+    }
+
+    @Synchronized
+    private fun startObserving(context: Context, uri: Uri): Long {
+        if (observer == null) {
+            val observer = object : ContentObserver(null) {
+                override fun onChange(selfChange: Boolean, uri: Uri?) {
+                    // A change of the authority itself affects all tables
+                    invalidateCache(uri?.takeIf { it.pathSegments.isNotEmpty() })
+                }
+            }
+            context.applicationContext.contentResolver.registerContentObserver(getAuthorityUri(context), true, observer)
+            this.observer = observer
+        }
+        return getGeneration(uri)
+    }
+
+    // Both parts only ever increase, so the sum changes whenever either of them does
+    private fun getGeneration(uri: Uri): Long = globalGeneration + (generations[uri] ?: 0)
+
+    /**
+     * Drops cached settings of the table of [uri], or of all tables if null.
+     */
+    @JvmStatic
+    @Synchronized
+    fun invalidateCache(uri: Uri? = null) {
+        if (uri == null) {
+            globalGeneration++
+            cache.clear()
+        } else {
+            generations[uri] = (generations[uri] ?: 0) + 1
+        }
+    }
+
     @JvmStatic
     fun setSettings(context: Context, uri: Uri, v: ContentValues.() -> Unit) = withoutCallingIdentity {
         val values = ContentValues().apply { v.invoke(this) }
         val affected = context.contentResolver.update(uri, values, null, null)
+        // The change notification may arrive late, so make sure reads from this process see the change right away
+        invalidateCache(uri)
         require(affected == 1) { "Update for $uri with $values affected 0 rows"}
     }
 
+    class SettingsBatch internal constructor() {
+        internal val extras = Bundle()
+        internal val uris = mutableListOf<Uri>()
+
+        fun put(uri: Uri, v: ContentValues.() -> Unit) {
+            val key = uri.toString()
+            @Suppress("DEPRECATION")
+            val values = extras.getParcelable(key) ?: ContentValues().also { uris.add(uri) }
+            v.invoke(values)
+            extras.putParcelable(key, values)
+        }
+    }
+
+    /**
+     * Updates settings of several tables with a single call to the provider, which writes each preference file once.
+     * Either all updates are applied or none.
+     */
+    @JvmStatic
+    fun setSettingsBatch(context: Context, v: SettingsBatch.() -> Unit) = withoutCallingIdentity {
+        val batch = SettingsBatch().apply(v)
+        if (batch.uris.isEmpty()) return@withoutCallingIdentity
+        context.contentResolver.call(getAuthorityUri(context), METHOD_UPDATE_BATCH, null, batch.extras)
+        for (uri in batch.uris) invalidateCache(uri)
+    }
+
 }
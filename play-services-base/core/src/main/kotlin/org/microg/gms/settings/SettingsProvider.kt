@@ -7,13 +7,13 @@ package org.microg.gms.settings
 
 import android.content.ContentProvider
 import android.content.ContentValues
-import android.content.Context
 import android.content.Context.MODE_PRIVATE
 import android.content.SharedPreferences
 import android.database.Cursor
 import android.database.MatrixCursor
 import android.net.Uri
 import android.os.Build.VERSION.SDK_INT
+import android.os.Bundle
 import android.preference.PreferenceManager
 import org.microg.gms.common.PackageUtils.warnIfNotMainProcess
 import org.microg.gms.settings.SettingsContract.Auth
@@ -21,7 +21,7 @@ import org.microg.gms.settings.SettingsContract.CheckIn
 import org.microg.gms.settings.SettingsContract.Gcm
 import org.microg.gms.settings.SettingsContract.Profile
 import org.microg.gms.settings.SettingsContract.getAuthority
-import java.io.File
+import org.microg.gms.settings.SettingsContract.getAuthorityUri
 
 private const val SETTINGS_PREFIX = "org.microg.gms.settings."
 
@@ -40,22 +40,46 @@ class SettingsProvider : ContentProvider() {
     private val unifiedNlpPreferences by lazy {
         context!!.getSharedPreferences("unified_nlp", MODE_PRIVATE)
     }
-    private val systemDefaultPreferences: SharedPreferences? by lazy {
-        try {
-            Context::class.java.getDeclaredMethod(
-                "getSharedPreferences",
-                File::class.java,
-                Int::class.javaPrimitiveType
-            ).invoke(context, File("/system/etc/microg.xml"), MODE_PRIVATE) as SharedPreferences
-        } catch (ignored: Exception) {
-            null
+    private val systemDefaults by lazy {
+        SystemDefaults {
+            invalidateSettings()
+            context!!.contentResolver.notifyChange(getAuthorityUri(context!!), null)
         }
     }
     private val metaDataPreferences: SharedPreferences by lazy {
         MetaDataPreferences(context!!, SETTINGS_PREFIX)
     }
 
+    /**
+     * Settings from [preferences] merged over the defaults from [systemDefaults] and [metaDataPreferences],
+     * rebuilt when first needed after a change.
+     */
+    @Volatile
+    private var effectiveSettings: Map<String, Any?>? = null
+
+    // Also catches changes not made through this provider. Kept as field, as preferences only keep a weak reference.
+    private val preferencesListener = SharedPreferences.OnSharedPreferenceChangeListener { _, _ -> invalidateSettings() }
+
+    // Synchronized with merging, so that a merge that missed the change can't be kept
+    @Synchronized
+    private fun invalidateSettings() {
+        effectiveSettings = null
+    }
+
+    private fun getEffectiveSettings(): Map<String, Any?> {
+        effectiveSettings?.let { return it }
+        synchronized(this) {
+            effectiveSettings?.let { return it }
+            val settings = HashMap<String, Any?>(metaDataPreferences.all)
+            settings.putAll(systemDefaults.values)
+            settings.putAll(preferences.all)
+            effectiveSettings = settings
+            return settings
+        }
+    }
+
     override fun onCreate(): Boolean {
+        preferences.registerOnSharedPreferenceChangeListener(preferencesListener)
         return true
     }
 
@@ -81,14 +105,66 @@ class SettingsProvider : ContentProvider() {
     ): Int {
         warnIfNotMainProcess(context, this.javaClass)
         if (values == null) return 0
+        val edits = Edits()
+        if (!update(uri, values, edits)) return 0
+        edits.apply()
+        invalidateSettings()
+        context!!.contentResolver.notifyChange(uri, null)
+        return 1
+    }
+
+    /**
+     * Applies the updates for several tables in [extras] at once, see [SettingsContract.setSettingsBatch].
+     *
+     * Each preference file is only written once and nothing is written if any of the updates is invalid.
+     */
+    override fun call(method: String, arg: String?, extras: Bundle?): Bundle? {
+        if (method != SettingsContract.METHOD_UPDATE_BATCH) return null
+        // Unlike queries and updates, calls are not protected by the provider's permissions
+        context!!.enforceCallingOrSelfPermission("${context!!.packageName}.permission.WRITE_SETTINGS", null)
+        warnIfNotMainProcess(context, this.javaClass)
+        if (extras == null) return null
+        val edits = Edits()
+        val uris = extras.keySet().map { Uri.parse(it) }
+        for (uri in uris) {
+            @Suppress("DEPRECATION")
+            val values = extras.getParcelable<ContentValues>(uri.toString())
+            require(values != null && update(uri, values, edits)) { "Invalid update for $uri" }
+        }
+        edits.apply()
+        invalidateSettings()
+        for (uri in uris) context!!.contentResolver.notifyChange(uri, null)
+        return null
+    }
+
+    private fun update(uri: Uri, values: ContentValues, edits: Edits): Boolean {
         when (uri) {
-            CheckIn.getContentUri(context!!) -> updateCheckIn(values)
-            Gcm.getContentUri(context!!) -> updateGcm(values)
-            Auth.getContentUri(context!!) -> updateAuth(values)
-            Profile.getContentUri(context!!) -> updateProfile(values)
-            else -> return 0
+            CheckIn.getContentUri(context!!) -> updateCheckIn(values, edits)
+            Gcm.getContentUri(context!!) -> updateGcm(values, edits)
+            Auth.getContentUri(context!!) -> updateAuth(values, edits)
+            Profile.getContentUri(context!!) -> updateProfile(values, edits)
+            else -> return false
+        }
+        return true
+    }
+
+    /**
+     * Editors for the preference files changed by an update, created when first used so that every changed file is
+     * written exactly once.
+     */
+    private inner class Edits {
+        private var preferencesEditor: SharedPreferences.Editor? = null
+        private var checkInEditor: SharedPreferences.Editor? = null
+
+        val preferences: SharedPreferences.Editor
+            get() = preferencesEditor ?: this@SettingsProvider.preferences.edit().also { preferencesEditor = it }
+        val checkIn: SharedPreferences.Editor
+            get() = checkInEditor ?: checkInPrefs.edit().also { checkInEditor = it }
+
+        fun apply() {
+            preferencesEditor?.apply()
+            checkInEditor?.apply()
         }
-        return 1
     }
 
     private fun queryCheckIn(p: Array<out String>): Cursor = MatrixCursor(p).addRow(p) { key ->
@@ -106,45 +182,21 @@ class SettingsProvider : ContentProvider() {
         }
     }
 
-    private fun updateCheckIn(values: ContentValues) {
-        if (values.size() == 0) return
-        if (values.size() == 1 && values.containsKey(CheckIn.ENABLED)) {
-            // special case: only changing enabled state
-            updateCheckInEnabled(values.getAsBoolean(CheckIn.ENABLED))
-            return
-        }
-        val editor = checkInPrefs.edit()
+    private fun updateCheckIn(values: ContentValues, edits: Edits) {
         values.valueSet().forEach { (key, value) ->
-            if (key == CheckIn.ENABLED) {
-                // special case: not saved in checkInPrefs
-                updateCheckInEnabled(value as Boolean)
-            }
-            if (key == CheckIn.BRAND_SPOOF) {
-                // special case: not saved in checkInPrefs
-                updateSpoofingEnabled(value as Boolean)
-            }
             when (key) {
-                CheckIn.ANDROID_ID -> editor.putLong(key, value as Long)
-                CheckIn.DIGEST -> editor.putString(key, value as String?)
-                CheckIn.LAST_CHECK_IN -> editor.putLong(key, value as Long)
-                CheckIn.SECURITY_TOKEN -> editor.putLong(key, value as Long)
-                CheckIn.VERSION_INFO -> editor.putString(key, value as String?)
-                CheckIn.DEVICE_DATA_VERSION_INFO -> editor.putString(key, value as String?)
+                // special case: not saved in checkInPrefs
+                CheckIn.ENABLED -> edits.preferences.putBoolean(key, value as Boolean)
+                CheckIn.BRAND_SPOOF -> edits.preferences.putBoolean(key, value as Boolean)
+
+                CheckIn.ANDROID_ID -> edits.checkIn.putLong(key, value as Long)
+                CheckIn.DIGEST -> edits.checkIn.putString(key, value as String?)
+                CheckIn.LAST_CHECK_IN -> edits.checkIn.putLong(key, value as Long)
+                CheckIn.SECURITY_TOKEN -> edits.checkIn.putLong(key, value as Long)
+                CheckIn.VERSION_INFO -> edits.checkIn.putString(key, value as String?)
+                CheckIn.DEVICE_DATA_VERSION_INFO -> edits.checkIn.putString(key, value as String?)
             }
         }
-        editor.apply()
-    }
-
-    private fun updateCheckInEnabled(enabled: Boolean) {
-        preferences.edit()
-            .putBoolean(CheckIn.ENABLED, enabled)
-            .apply()
-    }
-
-    private fun updateSpoofingEnabled(enabled: Boolean) {
-        preferences.edit()
-            .putBoolean(CheckIn.BRAND_SPOOF, enabled)
-            .apply()
     }
 
     private fun queryGcm(p: Array<out String>): Cursor = MatrixCursor(p).addRow(p) { key ->
@@ -168,9 +220,9 @@ class SettingsProvider : ContentProvider() {
         }
     }
 
-    private fun updateGcm(values: ContentValues) {
+    private fun updateGcm(values: ContentValues, edits: Edits) {
         if (values.size() == 0) return
-        val editor = preferences.edit()
+        val editor = edits.preferences
         values.valueSet().forEach { (key, value) ->
             when (key) {
                 Gcm.ENABLE_GCM -> editor.putBoolean(key, value as Boolean)
@@ -191,7 +243,6 @@ class SettingsProvider : ContentProvider() {
                 else -> throw IllegalArgumentException("Unknown key: $key")
             }
         }
-        editor.apply()
     }
 
     private fun queryAuth(p: Array<out String>): Cursor = MatrixCursor(p).addRow(p) { key ->
@@ -204,9 +255,9 @@ class SettingsProvider : ContentProvider() {
         }
     }
 
-    private fun updateAuth(values: ContentValues) {
+    private fun updateAuth(values: ContentValues, edits: Edits) {
         if (values.size() == 0) return
-        val editor = preferences.edit()
+        val editor = edits.preferences
         values.valueSet().forEach { (key, value) ->
             when (key) {
                 Auth.TRUST_GOOGLE -> editor.putBoolean(key, value as Boolean)
@@ -216,7 +267,6 @@ class SettingsProvider : ContentProvider() {
                 else -> throw IllegalArgumentException("Unknown key: $key")
             }
         }
-        editor.apply()
     }
 
     private fun queryProfile(p: Array<out String>): Cursor = MatrixCursor(p).addRow(p) { key ->
@@ -227,9 +277,9 @@ class SettingsProvider : ContentProvider() {
         }
     }
 
-    private fun updateProfile(values: ContentValues) {
+    private fun updateProfile(values: ContentValues, edits: Edits) {
         if (values.size() == 0) return
-        val editor = preferences.edit()
+        val editor = edits.preferences
         values.valueSet().forEach { (key, value) ->
             when (key) {
                 Profile.PROFILE -> editor.putString(key, value as String?)
@@ -237,7 +287,6 @@ class SettingsProvider : ContentProvider() {
                 else -> throw IllegalArgumentException("Unknown key: $key")
             }
         }
-        editor.apply()
     }
 
     private fun MatrixCursor.addRow(
@@ -263,17 +312,20 @@ class SettingsProvider : ContentProvider() {
 
     /**
      * Returns the current setting of the given [key]
-     * using the default value from [systemDefaultPreferences] or [def] if not available.
+     * using the default value from [systemDefaults], [metaDataPreferences] or [def] if not available.
      * @return the current setting as [Int], because [ContentProvider] does not support [Boolean].
      */
     private fun getSettingsBoolean(key: String, def: Boolean): Int {
-        return listOf(preferences, systemDefaultPreferences, metaDataPreferences).getBooleanAsInt(key, def)
+        return if (getEffectiveSettings()[key] as? Boolean ?: def) 1 else 0
     }
 
-    private fun getSettingsString(key: String, def: String? = null): String? = listOf(preferences, systemDefaultPreferences, metaDataPreferences).getString(key, def)
-    private fun getSettingsInt(key: String, def: Int): Int = listOf(preferences, systemDefaultPreferences, metaDataPreferences).getInt(key, def)
-    private fun getSettingsLong(key: String, def: Long): Long = listOf(preferences, systemDefaultPreferences, metaDataPreferences).getLong(key, def)
-    private fun getUnifiedNlpSettingsStringSetCompat(key: String, def: Set<String>): Set<String> = listOf(unifiedNlpPreferences, preferences, systemDefaultPreferences).getStringSetCompat(key, def)
+    private fun getSettingsString(key: String, def: String? = null): String? = getEffectiveSettings()[key] as? String ?: def
+    private fun getSettingsInt(key: String, def: Int): Int = getEffectiveSettings()[key] as? Int ?: def
+    private fun getSettingsLong(key: String, def: Long): Long = getEffectiveSettings()[key] as? Long ?: def
+    private fun getUnifiedNlpSettingsStringSetCompat(key: String, def: Set<String>): Set<String> {
+        val systemDefault = systemDefaults.values[key] as? Set<*>
+        return listOf(unifiedNlpPreferences, preferences).getStringSetCompat(key, systemDefault?.filterIsInstance<String>()?.toSet() ?: def)
+    }
 
     private fun SharedPreferences.getStringSetCompat(key: String, def: Set<String>): Set<String> {
         if (SDK_INT >= 11) {
@@ -294,9 +346,4 @@ class SettingsProvider : ContentProvider() {
     }
 
     private fun List<SharedPreferences?>.getStringSetCompat(key: String, def: Set<String>): Set<String> = foldRight(def) { preferences, defValue -> preferences?.getStringSetCompat(key, defValue) ?: defValue }
-    private fun List<SharedPreferences?>.getString(key: String, def: String?): String? = foldRight(def) { preferences, defValue -> preferences?.getString(key, defValue) ?: defValue }
-    private fun List<SharedPreferences?>.getInt(key: String, def: Int): Int = foldRight(def) { preferences, defValue -> preferences?.getInt(key, defValue) ?: defValue }
-    private fun List<SharedPreferences?>.getLong(key: String, def: Long): Long = foldRight(def) { preferences, defValue -> preferences?.getLong(key, defValue) ?: defValue }
-    private fun List<SharedPreferences?>.getBoolean(key: String, def: Boolean): Boolean = foldRight(def) { preferences, defValue -> preferences?.getBoolean(key, defValue) ?: defValue }
-    private fun List<SharedPreferences?>.getBooleanAsInt(key: String, def: Boolean): Int = if (getBoolean(key, def)) 1 else 0
 }
@@ -0,0 +1,83 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.settings
+
+import android.os.FileObserver
+import android.util.Log
+import android.util.Xml
+import org.xmlpull.v1.XmlPullParser
+import java.io.File
+
+private const val TAG = "SystemDefaults"
+
+/**
+ * Default settings shipped with the system image in `/system/etc/microg.xml`, in the format of [android.content.SharedPreferences] files.
+ *
+ * The file is parsed once into an immutable map and parsed again only when it changes, in which case [onChange] is called.
+ */
+internal class SystemDefaults(private val file: File = File("/system/etc/microg.xml"), private val onChange: () -> Unit) {
+    @Volatile
+    var values: Map<String, Any> = parse(file)
+        private set
+
+    @Suppress("DEPRECATION")
+    private val observer = object : FileObserver(file.parent!!, CLOSE_WRITE or MOVED_TO or CREATE or DELETE) {
+        override fun onEvent(event: Int, path: String?) {
+            if (path != file.name) return
+            values = parse(file)
+            onChange()
+        }
+    }
+
+    init {
+        observer.startWatching()
+    }
+
+    companion object {
+        fun parse(file: File): Map<String, Any> {
+            if (!file.canRead()) return emptyMap()
+            return try {
+                file.inputStream().use { stream ->
+                    val parser = Xml.newPullParser()
+                    parser.setInput(stream, null)
+                    parseMap(parser)
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to parse $file", e)
+                emptyMap()
+            }
+        }
+
+        private fun parseMap(parser: XmlPullParser): Map<String, Any> {
+            val map = hashMapOf<String, Any>()
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                if (parser.eventType != XmlPullParser.START_TAG || parser.depth != 2) continue
+                val name = parser.getAttributeValue(null, "name") ?: continue
+                val value = parser.getAttributeValue(null, "value")
+                when (parser.name) {
+                    "boolean" -> value?.toBooleanStrictOrNull()
+                    "int" -> value?.toIntOrNull()
+                    "long" -> value?.toLongOrNull()
+                    "float" -> value?.toFloatOrNull()
+                    "string" -> parser.nextText()
+                    "set" -> parseSet(parser)
+                    else -> null
+                }?.let { map[name] = it }
+            }
+            return map
+        }
+
+        private fun parseSet(parser: XmlPullParser): Set<String> {
+            val set = hashSetOf<String>()
+            val depth = parser.depth
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                if (parser.eventType == XmlPullParser.END_TAG && parser.depth == depth) break
+                if (parser.eventType == XmlPullParser.START_TAG && parser.name == "string") set.add(parser.nextText())
+            }
+            return set
+        }
+    }
+}
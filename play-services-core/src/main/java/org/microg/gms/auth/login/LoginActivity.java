@@ -78,7 +78,7 @@ import static android.view.View.VISIBLE;
 import static android.view.inputmethod.InputMethodManager.SHOW_IMPLICIT;
 import static org.microg.gms.auth.AuthPrefs.isAuthVisible;
 import static org.microg.gms.checkin.CheckinPreferences.isSpoofingEnabled;
-import static org.microg.gms.checkin.CheckinPreferences.setSpoofingEnabled;
+import static org.microg.gms.checkin.CheckinPreferences.setSpoofingEnabledAndClearCheckin;
 import static org.microg.gms.common.Constants.GMS_PACKAGE_NAME;
 import static org.microg.gms.common.Constants.GMS_VERSION_CODE;
 import static org.microg.gms.common.Constants.GOOGLE_GMS_PACKAGE_NAME;
@@ -208,8 +208,7 @@ public class LoginActivity extends AssistantActivity {
         if (state == 1) {
             //noinspection DataFlowIssue
             if (isSpoofingEnabled(this)) {
-                LastCheckinInfo.clear(this);
-                setSpoofingEnabled(this, false);
+                setSpoofingEnabledAndClearCheckin(this, false);
             }
             init();
         } else if (state == -1) {
@@ -225,8 +224,7 @@ public class LoginActivity extends AssistantActivity {
         if (state == 1) {
             //noinspection DataFlowIssue
             if (!isSpoofingEnabled(this)) {
-                LastCheckinInfo.clear(this);
-                setSpoofingEnabled(this, true);
+                setSpoofingEnabledAndClearCheckin(this, true);
             }
             init();
         } else if (state == -1) {
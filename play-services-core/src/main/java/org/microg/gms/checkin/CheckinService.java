@@ -78,6 +78,7 @@ public class CheckinService extends IntentService {
     @SuppressWarnings("MissingPermission")
     @Override
     protected void onHandleIntent(Intent intent) {
+        ResultReceiver receiver = intent != null ? intent.getParcelableExtra(EXTRA_RESULT_RECEIVER) : null;
         try {
             ForegroundServiceContext.completeForegroundService(this, intent, TAG);
             if (CheckinPreferences.isEnabled(this)) {
@@ -92,19 +93,21 @@ public class CheckinService extends IntentService {
                     if (intent.hasExtra(EXTRA_CALLBACK_INTENT)) {
                         startService((Intent) intent.getParcelableExtra(EXTRA_CALLBACK_INTENT));
                     }
-                    if (intent.hasExtra(EXTRA_RESULT_RECEIVER)) {
-                        ResultReceiver receiver = intent.getParcelableExtra(EXTRA_RESULT_RECEIVER);
-                        if (receiver != null) {
-                            Bundle bundle = new Bundle();
-                            bundle.putLong(EXTRA_NEW_CHECKIN_TIME, info.getLastCheckin());
-                            receiver.send(Activity.RESULT_OK, bundle);
-                        }
+                    if (receiver != null) {
+                        Bundle bundle = new Bundle();
+                        bundle.putLong(EXTRA_NEW_CHECKIN_TIME, info.getLastCheckin());
+                        receiver.send(Activity.RESULT_OK, bundle);
+                        receiver = null;
                     }
                 }
             }
         } catch (Exception e) {
             Log.w(TAG, e);
         } finally {
+            // Always report back, so that callers waiting for the check-in don't need to time out
+            if (receiver != null) {
+                receiver.send(Activity.RESULT_CANCELED, Bundle.EMPTY);
+            }
             if (intent != null) {
                 WakefulBroadcastReceiver.completeWakefulIntent(intent);
             }
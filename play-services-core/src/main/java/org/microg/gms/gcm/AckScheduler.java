@@ -0,0 +1,153 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.Handler;
+
+import org.microg.gms.gcm.mcs.Extension;
+import org.microg.gms.gcm.mcs.IqStanza;
+import org.microg.gms.gcm.mcs.SelectiveAck;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import okio.ByteString;
+
+import static org.microg.gms.gcm.McsConstants.MSG_ACK;
+
+/**
+ * Batches acknowledgements for received messages.
+ * <p>
+ * Instead of acknowledging each message, an ack is scheduled once {@link #BATCH_SIZE} messages were received or
+ * {@link #BATCH_DELAY_MS} after the first unacknowledged message. The ack is a SelectiveAck for all persistent ids
+ * in the ledger, or a StreamAck if there are none, and carries the last received stream id either way. Appends to
+ * the ledger are only flushed to storage when an ack is built.
+ * <p>
+ * Acknowledged ids stay in the ledger until the server confirmed receiving the ack, by sending a last stream id
+ * received that covers the stream id the ack was written with.
+ */
+class AckScheduler {
+    private static final int EXTENSION_SELECTIVE_ACK = 12;
+    private static final int EXTENSION_STREAM_ACK = 13;
+    private static final int BATCH_SIZE = 10;
+    private static final long BATCH_DELAY_MS = 5000;
+
+    private final PersistentIdLedger persistentIds;
+    private final Handler handler;
+    private int unacknowledged;
+    private IqStanza pendingAck;
+    private List<String> pendingIds;
+    // Connection the pending ack was built for, it's never written on another one
+    private McsInputStream pendingConnection;
+    // Acks written on the current connection that the server did not confirm yet
+    private final List<WrittenAck> writtenAcks = new ArrayList<>();
+
+    /**
+     * @param handler handler to send {@link McsConstants#MSG_ACK} to when an ack is due
+     */
+    AckScheduler(PersistentIdLedger persistentIds, Handler handler) {
+        this.persistentIds = persistentIds;
+        this.handler = handler;
+    }
+
+    /**
+     * Notes a received message and schedules an ack for it.
+     */
+    synchronized void onMessage(String persistentId) {
+        if (persistentId != null) persistentIds.add(persistentId);
+        unacknowledged++;
+        if (unacknowledged >= BATCH_SIZE) {
+            handler.removeMessages(MSG_ACK);
+            handler.sendMessage(handler.obtainMessage(MSG_ACK, "batch full"));
+        } else if (!handler.hasMessages(MSG_ACK)) {
+            handler.sendMessageDelayed(handler.obtainMessage(MSG_ACK, "batch delay"), BATCH_DELAY_MS);
+        }
+    }
+
+    /**
+     * @return the ack to send now or null if there is nothing to acknowledge or an ack is still being sent on this
+     * connection.
+     */
+    synchronized IqStanza buildAck(McsInputStream inputStream) {
+        if (pendingAck != null && pendingConnection == inputStream) return null;
+        persistentIds.flush();
+        List<String> ids = persistentIds.getIds();
+        boolean newStreamId = inputStream.newStreamIdAvailable();
+        if (ids.isEmpty() && !newStreamId) return null;
+        Extension extension;
+        if (ids.isEmpty()) {
+            extension = new Extension.Builder().id(EXTENSION_STREAM_ACK).data_(ByteString.EMPTY).build();
+        } else {
+            SelectiveAck selectiveAck = new SelectiveAck.Builder().id(ids).build();
+            extension = new Extension.Builder().id(EXTENSION_SELECTIVE_ACK).data_(ByteString.of(SelectiveAck.ADAPTER.encode(selectiveAck))).build();
+        }
+        IqStanza.Builder iq = new IqStanza.Builder()
+                .type(IqStanza.IqType.SET)
+                .id("")
+                .extension(extension)
+                .status(0L);
+        if (newStreamId) {
+            iq.last_stream_id_received(inputStream.getStreamId());
+        }
+        unacknowledged = 0;
+        pendingAck = iq.build();
+        pendingIds = ids;
+        pendingConnection = inputStream;
+        return pendingAck;
+    }
+
+    /**
+     * Called when a stanza was written to the connection. Writing our ack doesn't mean the server received it, so
+     * the acknowledged ids are kept until {@link #onServerAcknowledged(int)} confirms the stream id of the ack.
+     *
+     * @param streamId the stream id the stanza was written with
+     */
+    synchronized void onWritten(Object stanza, int streamId) {
+        if (pendingAck == null || stanza != pendingAck) return;
+        if (!pendingIds.isEmpty()) writtenAcks.add(new WrittenAck(streamId, pendingIds));
+        pendingAck = null;
+        pendingIds = null;
+        pendingConnection = null;
+    }
+
+    /**
+     * Called when the server sent the last stream id it received on the current connection. Ids of all acks written
+     * up to that stream id are removed from the ledger, as the server no longer redelivers them.
+     */
+    synchronized void onServerAcknowledged(int lastStreamIdReceived) {
+        Iterator<WrittenAck> iterator = writtenAcks.iterator();
+        while (iterator.hasNext()) {
+            WrittenAck ack = iterator.next();
+            if (ack.streamId > lastStreamIdReceived) continue;
+            persistentIds.remove(ack.ids);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Drops state of the current connection. Ids of unsent or unconfirmed acks remain in the ledger and are sent with
+     * the next login request. Called whenever a connection is made or torn down.
+     */
+    synchronized void reset() {
+        handler.removeMessages(MSG_ACK);
+        unacknowledged = 0;
+        pendingAck = null;
+        pendingIds = null;
+        pendingConnection = null;
+        writtenAcks.clear();
+    }
+
+    private static class WrittenAck {
+        final int streamId;
+        final List<String> ids;
+
+        WrittenAck(int streamId, List<String> ids) {
+            this.streamId = streamId;
+            this.ids = ids;
+        }
+    }
+}
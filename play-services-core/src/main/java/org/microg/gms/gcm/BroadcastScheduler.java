@@ -0,0 +1,133 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.PowerManager;
+
+import org.microg.gms.gcm.mcs.AppData;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Sends the broadcasts for push messages depending on their priority.
+ * <p>
+ * High priority messages are delivered immediately, temporarily allowlisting the app if requested. Normal priority
+ * messages are held back for a short window and then delivered together with all other messages for the same
+ * package, so that the app is allowlisted and woken up once per window instead of once per message. A wakelock is
+ * held while messages are held back, as the delay is not counted while the device sleeps.
+ */
+class BroadcastScheduler {
+    private static final String EXTRA_PRIORITY = "google.priority";
+    private static final String EXTRA_DELIVERED_PRIORITY = "google.delivered_priority";
+    private static final String PRIORITY_NORMAL = "normal";
+    private static final long NORMAL_PRIORITY_WINDOW_MS = 3000;
+    // Only reached if a flush doesn't happen for some reason
+    private static final long WAKELOCK_TIMEOUT_MS = NORMAL_PRIORITY_WINDOW_MS + 2000;
+
+    private final Context context;
+    private final Handler handler;
+    private final Consumer<String> allowlist;
+    private final Map<String, List<Broadcast>> pending = new HashMap<>();
+    private final PowerManager.WakeLock wakeLock;
+
+    static class Broadcast {
+        private final Intent intent;
+        private final String receiverPermission;
+        private final boolean allowlist;
+
+        /**
+         * @param allowlist whether the receiving app should be temporarily allowlisted before the broadcast is sent
+         */
+        Broadcast(Intent intent, String receiverPermission, boolean allowlist) {
+            this.intent = intent;
+            this.receiverPermission = receiverPermission;
+            this.allowlist = allowlist;
+        }
+    }
+
+    /**
+     * @param handler   handler to run delayed deliveries of normal priority messages on
+     * @param allowlist called with a package name to temporarily allowlist the package
+     */
+    BroadcastScheduler(Context context, Handler handler, Consumer<String> allowlist) {
+        this.context = context;
+        this.handler = handler;
+        this.allowlist = allowlist;
+        wakeLock = ((PowerManager) context.getSystemService(Context.POWER_SERVICE)).newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "mcs:broadcast");
+        wakeLock.setReferenceCounted(false);
+    }
+
+    /**
+     * @return true if the message is explicitly marked as normal priority. Messages without priority are delivered
+     * like high priority messages, as they were before priorities existed.
+     */
+    static boolean isNormalPriority(DataMessageStanza msg) {
+        for (AppData appData : msg.app_data) {
+            if (EXTRA_DELIVERED_PRIORITY.equals(appData.key) || EXTRA_PRIORITY.equals(appData.key)) {
+                return PRIORITY_NORMAL.equalsIgnoreCase(appData.value_);
+            }
+        }
+        return false;
+    }
+
+    void deliver(String packageName, boolean highPriority, List<Broadcast> broadcasts) {
+        List<Broadcast> due;
+        synchronized (pending) {
+            List<Broadcast> queued = pending.get(packageName);
+            if (highPriority) {
+                // Deliver held back messages with it, keeping the order
+                due = queued != null ? pending.remove(packageName) : new ArrayList<>();
+                due.addAll(broadcasts);
+            } else {
+                if (queued == null) {
+                    pending.put(packageName, new ArrayList<>(broadcasts));
+                    wakeLock.acquire(WAKELOCK_TIMEOUT_MS);
+                    handler.postDelayed(() -> flush(packageName), NORMAL_PRIORITY_WINDOW_MS);
+                } else {
+                    queued.addAll(broadcasts);
+                }
+                return;
+            }
+        }
+        send(packageName, due);
+        releaseIfIdle();
+    }
+
+    private void flush(String packageName) {
+        List<Broadcast> due;
+        synchronized (pending) {
+            due = pending.remove(packageName);
+        }
+        // Null if they were delivered together with a high priority message in the meantime
+        if (due != null) send(packageName, due);
+        releaseIfIdle();
+    }
+
+    private void releaseIfIdle() {
+        synchronized (pending) {
+            if (pending.isEmpty() && wakeLock.isHeld()) wakeLock.release();
+        }
+    }
+
+    private void send(String packageName, List<Broadcast> broadcasts) {
+        boolean allowlisted = false;
+        for (Broadcast broadcast : broadcasts) {
+            if (broadcast.allowlist && !allowlisted) {
+                allowlist.accept(packageName);
+                allowlisted = true;
+            }
+            context.sendOrderedBroadcast(broadcast.intent, broadcast.receiverPermission);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs message deliveries off the connection reader thread.
+ * <p>
+ * Deliveries for the same package run in the order they were enqueued, deliveries for different packages run in
+ * parallel on a small pool of threads. The number of pending deliveries is bounded: when the queue is full,
+ * {@link #enqueue(String, Runnable)} blocks, so the reader stops reading from the socket until deliveries caught up.
+ */
+class DeliveryQueue {
+    private static final String TAG = "GmsGcmDelivery";
+
+    private final int capacity;
+    private final ThreadPoolExecutor executor;
+    private final Map<String, ArrayDeque<Runnable>> queues = new HashMap<>();
+    private int depth;
+    private int maxDepth;
+    private long deliveredCount;
+
+    DeliveryQueue(int threads, int capacity) {
+        this.capacity = capacity;
+        this.executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "McsDelivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Enqueues a delivery for the given package, blocking while the queue is full.
+     */
+    void enqueue(String packageName, Runnable delivery) throws InterruptedException {
+        synchronized (this) {
+            if (depth >= capacity) {
+                Log.d(TAG, "Queue full with " + depth + " deliveries, waiting");
+                while (depth >= capacity) wait();
+            }
+            depth++;
+            maxDepth = Math.max(maxDepth, depth);
+            ArrayDeque<Runnable> queue = queues.get(packageName);
+            if (queue != null) {
+                // Another delivery for this package is in progress, it runs ours when done
+                queue.add(delivery);
+                return;
+            }
+            queues.put(packageName, new ArrayDeque<>());
+        }
+        executor.execute(() -> run(packageName, delivery));
+    }
+
+    private void run(String packageName, Runnable delivery) {
+        try {
+            delivery.run();
+        } catch (Exception e) {
+            Log.w(TAG, "Delivery to " + packageName + " failed", e);
+        }
+        Runnable next;
+        synchronized (this) {
+            depth--;
+            deliveredCount++;
+            notifyAll();
+            ArrayDeque<Runnable> queue = queues.get(packageName);
+            next = queue.poll();
+            if (next == null) queues.remove(packageName);
+        }
+        // Resubmit instead of looping, so that a busy package does not block a thread for others
+        if (next != null) {
+            Runnable nextDelivery = next;
+            executor.execute(() -> run(packageName, nextDelivery));
+        }
+    }
+
+    synchronized int getDepth() {
+        return depth;
+    }
+
+    synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    synchronized long getDeliveredCount() {
+        return deliveredCount;
+    }
+}
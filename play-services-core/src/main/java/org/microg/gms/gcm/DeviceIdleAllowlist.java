@@ -0,0 +1,114 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.os.Build.VERSION.SDK_INT;
+
+/**
+ * Temporarily allowlists apps from power save restrictions, so they can handle push messages while the device is
+ * idle.
+ * <p>
+ * The hidden platform APIs are resolved once when created. Requests for a package that is still allowlisted from a
+ * previous request are skipped.
+ */
+class DeviceIdleAllowlist {
+    private static final String TAG = "GmsGcmIdleAllowlist";
+    private static final String REASON = "GCM Push";
+    private static final long DURATION_MS = 10000;
+    // Renew the allowlisting if it's about to expire, so the app doesn't lose it while handling the message
+    private static final long RENEW_MARGIN_MS = 2000;
+
+    private final Map<String, Long> allowlistedUntil = new HashMap<>();
+
+    private Object powerExemptionManager;
+    private Method addToTemporaryAllowListMethod;
+    private Object deviceIdleController;
+    private Method addPowerSaveTempWhitelistAppMethod;
+    private int userId;
+
+    @SuppressLint("PrivateApi")
+    DeviceIdleAllowlist(Context context) {
+        if (SDK_INT < 23 || context.checkSelfPermission("android.permission.CHANGE_DEVICE_IDLE_TEMP_WHITELIST") != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        try {
+            if (SDK_INT >= 31) {
+                Class<?> powerExemptionManagerClass = Class.forName("android.os.PowerExemptionManager");
+                powerExemptionManager = context.getSystemService(powerExemptionManagerClass);
+                addToTemporaryAllowListMethod =
+                        powerExemptionManagerClass.getMethod("addToTemporaryAllowList", String.class, int.class, String.class, long.class);
+            } else {
+                String deviceIdleControllerName = "deviceidle";
+                try {
+                    Field field = Context.class.getField("DEVICE_IDLE_CONTROLLER");
+                    deviceIdleControllerName = (String) field.get(null);
+                } catch (Exception ignored) {
+                }
+                IBinder binder = (IBinder) Class.forName("android.os.ServiceManager")
+                        .getMethod("getService", String.class).invoke(null, deviceIdleControllerName);
+                if (binder != null) {
+                    deviceIdleController = Class.forName("android.os.IDeviceIdleController$Stub")
+                            .getMethod("asInterface", IBinder.class).invoke(null, binder);
+                    addPowerSaveTempWhitelistAppMethod = deviceIdleController.getClass()
+                            .getMethod("addPowerSaveTempWhitelistApp", String.class, long.class, int.class, String.class);
+                    // Apps receiving our messages run as the same user as we do
+                    userId = (int) UserHandle.class.getMethod("getUserId", int.class).invoke(null, Process.myUid());
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, e);
+            powerExemptionManager = null;
+            addToTemporaryAllowListMethod = null;
+            deviceIdleController = null;
+            addPowerSaveTempWhitelistAppMethod = null;
+        }
+    }
+
+    /**
+     * @return true if allowlisting is possible on this device.
+     */
+    boolean isSupported() {
+        return (powerExemptionManager != null && addToTemporaryAllowListMethod != null) || (deviceIdleController != null && addPowerSaveTempWhitelistAppMethod != null);
+    }
+
+    void allowlist(String packageName) {
+        if (!isSupported()) return;
+        long now = SystemClock.elapsedRealtime();
+        synchronized (allowlistedUntil) {
+            Long until = allowlistedUntil.get(packageName);
+            if (until != null && until - RENEW_MARGIN_MS > now) return;
+            allowlistedUntil.put(packageName, now + DURATION_MS);
+        }
+        try {
+            if (addToTemporaryAllowListMethod != null) {
+                if (McsTrace.isVerbose()) Log.d(TAG, "Adding app " + packageName + " to the temp allowlist");
+                addToTemporaryAllowListMethod.invoke(powerExemptionManager, packageName, 0, REASON, DURATION_MS);
+            } else {
+                if (McsTrace.isVerbose()) Log.d(TAG, "Adding app " + packageName + " for userId " + userId + " to the temp whitelist");
+                addPowerSaveTempWhitelistAppMethod.invoke(deviceIdleController, packageName, DURATION_MS, userId, REASON);
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Error adding app " + packageName + " to the temp allowlist", e);
+            synchronized (allowlistedUntil) {
+                allowlistedUntil.remove(packageName);
+            }
+        }
+    }
+}
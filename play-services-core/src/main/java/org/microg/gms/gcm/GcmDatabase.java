@@ -7,13 +7,26 @@ package org.microg.gms.gcm;
 
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.text.TextUtils;
+import android.util.Log;
+
+import org.microg.gms.settings.SettingsContract;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @noinspection unused
@@ -21,7 +34,7 @@ import java.util.List;
 public class GcmDatabase extends SQLiteOpenHelper {
     private static final String TAG = GcmDatabase.class.getSimpleName();
     public static final String DB_NAME = "gcmstatus";
-    private static final int DB_VERSION = 1;
+    private static final int DB_VERSION = 2;
     private static final String CREATE_TABLE_APPS = "CREATE TABLE apps (" + "package_name TEXT," + "last_error TEXT DEFAULT ''," + "last_message_timestamp INTEGER," + "total_message_count INTEGER," + "total_message_bytes INTEGER," + "allow_register INTEGER DEFAULT 1," + "wake_for_delivery INTEGER DEFAULT 1," + "PRIMARY KEY (package_name));";
     private static final String TABLE_APPS = "apps";
     private static final String FIELD_PACKAGE_NAME = "package_name";
@@ -38,12 +51,39 @@ public class GcmDatabase extends SQLiteOpenHelper {
     private static final String FIELD_TIMESTAMP = "timestamp";
     private static final String FIELD_REGISTER_ID = "register_id";
 
+    private static final String SQL_UPDATE_ALLOW_REGISTER = "UPDATE " + TABLE_APPS + " SET " + FIELD_ALLOW_REGISTER + " = ? WHERE " + FIELD_PACKAGE_NAME + " = ?";
+    private static final String SQL_UPDATE_WAKE_FOR_DELIVERY = "UPDATE " + TABLE_APPS + " SET " + FIELD_WAKE_FOR_DELIVERY + " = ? WHERE " + FIELD_PACKAGE_NAME + " = ?";
+    private static final String SQL_UPDATE_LAST_ERROR = "UPDATE " + TABLE_APPS + " SET " + FIELD_LAST_ERROR + " = ? WHERE " + FIELD_PACKAGE_NAME + " = ?";
+    private static final String SQL_UPDATE_MESSAGE_STATS = "UPDATE " + TABLE_APPS + " SET " + FIELD_TOTAL_MESSAGE_COUNT + " = IFNULL(" + FIELD_TOTAL_MESSAGE_COUNT + ", 0) + ?, " + FIELD_TOTAL_MESSAGE_BYTES + " = IFNULL(" + FIELD_TOTAL_MESSAGE_BYTES + ", 0) + ?, " + FIELD_LAST_MESSAGE_TIMESTAMP + " = ? WHERE " + FIELD_PACKAGE_NAME + " = ?";
+    private static final String SQL_INSERT_APP_IF_MISSING = "INSERT OR IGNORE INTO " + TABLE_APPS + " (" + FIELD_PACKAGE_NAME + ", " + FIELD_TOTAL_MESSAGE_COUNT + ", " + FIELD_TOTAL_MESSAGE_BYTES + ") VALUES (?, 0, 0)";
+    private static final String SQL_INSERT_APP_ALLOW_REGISTER = "INSERT INTO " + TABLE_APPS + " (" + FIELD_PACKAGE_NAME + ", " + FIELD_ALLOW_REGISTER + ", " + FIELD_TOTAL_MESSAGE_COUNT + ", " + FIELD_TOTAL_MESSAGE_BYTES + ") VALUES (?, ?, 0, 0)";
+    private static final String SQL_DELETE_APP = "DELETE FROM " + TABLE_APPS + " WHERE " + FIELD_PACKAGE_NAME + " = ?";
+    private static final String SQL_REPLACE_REGISTRATION = "INSERT OR REPLACE INTO " + TABLE_REGISTRATIONS + " (" + FIELD_PACKAGE_NAME + ", " + FIELD_SIGNATURE + ", " + FIELD_REGISTER_ID + ", " + FIELD_TIMESTAMP + ") VALUES (?, ?, ?, ?)";
+    private static final String SQL_DELETE_REGISTRATION = "DELETE FROM " + TABLE_REGISTRATIONS + " WHERE " + FIELD_PACKAGE_NAME + " = ? AND " + FIELD_SIGNATURE + " = ?";
+    private static final String SQL_DELETE_REGISTRATIONS = "DELETE FROM " + TABLE_REGISTRATIONS + " WHERE " + FIELD_PACKAGE_NAME + " = ?";
+
+    // Message statistics are accumulated in memory and written at most this often
+    private static final long MESSAGE_STATS_FLUSH_DELAY = 30000;
+    private static Handler writerHandler;
+    // Increased whenever the database is changed, through any instance in this or another process
+    private static final AtomicLong generation = new AtomicLong();
+    private static ContentObserver changeObserver;
+
     private final Context context;
+    private final Map<String, MessageStats> pendingMessageStats = new HashMap<>();
+    private final Set<String> knownMessagePackages = new HashSet<>();
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private final Map<String, App> appCache = new HashMap<>();
+    private final Map<String, Map<String, Registration>> registrationCache = new HashMap<>();
+    private long cacheGeneration = -1;
+    private final Runnable flushMessageStatsRunnable = this::flushMessageStats;
+    private boolean messageStatsFlushScheduled;
 
     public GcmDatabase(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
         this.context = context;
         this.setWriteAheadLoggingEnabled(true);
+        startObserving(context);
     }
 
     public static class App {
@@ -84,6 +124,93 @@ public class GcmDatabase extends SQLiteOpenHelper {
         }
     }
 
+    private static class MessageStats {
+        private long count;
+        private long bytes;
+        private long lastTimestamp;
+    }
+
+    private static synchronized Handler getWriterHandler() {
+        if (writerHandler == null) {
+            HandlerThread thread = new HandlerThread("GcmDatabaseWriter");
+            thread.start();
+            writerHandler = new Handler(thread.getLooper());
+        }
+        return writerHandler;
+    }
+
+    /**
+     * Returns a compiled statement for the given SQL on the writable database. Statements are reused until the
+     * database is closed, callers need to rebind all arguments.
+     */
+    private SQLiteStatement getStatement(String sql) {
+        SQLiteStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = getWritableDatabase().compileStatement(sql);
+            statements.put(sql, statement);
+        }
+        statement.clearBindings();
+        return statement;
+    }
+
+    /**
+     * Change notifications need an authority of an existing provider, so the one of the settings provider is used.
+     */
+    private static Uri getChangeUri(Context context) {
+        return Uri.withAppendedPath(SettingsContract.INSTANCE.getAuthorityUri(context), DB_NAME);
+    }
+
+    private static synchronized void startObserving(Context context) {
+        if (changeObserver != null) return;
+        changeObserver = new ContentObserver(null) {
+            @Override
+            public void onChange(boolean selfChange) {
+                generation.incrementAndGet();
+            }
+        };
+        context.getApplicationContext().getContentResolver().registerContentObserver(getChangeUri(context), false, changeObserver);
+    }
+
+    /**
+     * Lets all instances know that the database was changed. Must be called after every write, instances in this
+     * process see the change right away, others once the change notification arrived.
+     */
+    private void notifyChanged() {
+        validateCache();
+        long next = generation.incrementAndGet();
+        // Our own change is already reflected in the cache, unless another change came in concurrently
+        if (next == cacheGeneration + 1) cacheGeneration = next;
+        context.getContentResolver().notifyChange(getChangeUri(context), null, false);
+    }
+
+    /**
+     * Drops all cached entries if the database was changed through another instance, in this or another process.
+     * Changes made through this instance are invalidated directly.
+     */
+    private void validateCache() {
+        long current = generation.get();
+        if (current != cacheGeneration) {
+            appCache.clear();
+            registrationCache.clear();
+            // Apps might have been removed, their rows need to be inserted again
+            knownMessagePackages.clear();
+            cacheGeneration = current;
+        }
+    }
+
+    private void invalidateCache(String packageName) {
+        appCache.remove(packageName);
+        registrationCache.remove(packageName);
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
     @Override
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(CREATE_TABLE_APPS);
@@ -116,7 +243,7 @@ public class GcmDatabase extends SQLiteOpenHelper {
 
     public synchronized List<Registration> getRegistrationsByApp(String packageName) {
         SQLiteDatabase db = getReadableDatabase();
-        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName}, null, null, null);
+        Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName}, null, null, null);
         List<Registration> result = new ArrayList<>();
         while (cursor.moveToNext()) {
             result.add(new Registration(cursor));
@@ -126,115 +253,192 @@ public class GcmDatabase extends SQLiteOpenHelper {
     }
 
     public synchronized void setAppAllowRegister(String packageName, boolean allowRegister) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_ALLOW_REGISTER, allowRegister ? 1 : 0);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        invalidateCache(packageName);
+        SQLiteStatement statement = getStatement(SQL_UPDATE_ALLOW_REGISTER);
+        statement.bindLong(1, allowRegister ? 1 : 0);
+        statement.bindString(2, packageName);
+        statement.executeUpdateDelete();
+        notifyChanged();
     }
 
     public synchronized void setAppWakeForDelivery(String packageName, boolean wakeForDelivery) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_WAKE_FOR_DELIVERY, wakeForDelivery ? 1 : 0);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        invalidateCache(packageName);
+        SQLiteStatement statement = getStatement(SQL_UPDATE_WAKE_FOR_DELIVERY);
+        statement.bindLong(1, wakeForDelivery ? 1 : 0);
+        statement.bindString(2, packageName);
+        statement.executeUpdateDelete();
+        notifyChanged();
     }
 
 
     public synchronized void removeApp(String packageName) {
-        SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
-        db.delete(TABLE_APPS, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        invalidateCache(packageName);
+        pendingMessageStats.remove(packageName);
+        knownMessagePackages.remove(packageName);
+        SQLiteStatement statement = getStatement(SQL_DELETE_REGISTRATIONS);
+        statement.bindString(1, packageName);
+        statement.executeUpdateDelete();
+        statement = getStatement(SQL_DELETE_APP);
+        statement.bindString(1, packageName);
+        statement.executeUpdateDelete();
+        notifyChanged();
     }
 
     public synchronized void resetDatabase() {
+        appCache.clear();
+        registrationCache.clear();
+        pendingMessageStats.clear();
+        knownMessagePackages.clear();
         SQLiteDatabase db = getWritableDatabase();
         db.delete(TABLE_APPS, null, null);
         db.delete(TABLE_REGISTRATIONS, null, null);
+        notifyChanged();
     }
 
     public synchronized void noteAppRegistrationError(String packageName, String error) {
-        SQLiteDatabase db = getWritableDatabase();
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_LAST_ERROR, error);
-        db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        invalidateCache(packageName);
+        SQLiteStatement statement = getStatement(SQL_UPDATE_LAST_ERROR);
+        bindStringOrNull(statement, 1, error);
+        statement.bindString(2, packageName);
+        statement.executeUpdateDelete();
+        notifyChanged();
     }
 
     public synchronized void noteAppKnown(String packageName, boolean allowRegister) {
+        invalidateCache(packageName);
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
-
-        App app = getApp(db, packageName);
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_ALLOW_REGISTER, allowRegister);
-        if (app == null) {
-            cv.put(FIELD_PACKAGE_NAME, packageName);
-            db.insert(TABLE_APPS, null, cv);
-        } else {
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        try {
+            SQLiteStatement statement = getStatement(SQL_UPDATE_ALLOW_REGISTER);
+            statement.bindLong(1, allowRegister ? 1 : 0);
+            statement.bindString(2, packageName);
+            if (statement.executeUpdateDelete() == 0) {
+                statement = getStatement(SQL_INSERT_APP_ALLOW_REGISTER);
+                statement.bindString(1, packageName);
+                statement.bindLong(2, allowRegister ? 1 : 0);
+                statement.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
         }
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        notifyChanged();
     }
 
+    /**
+     * Accounts a message for the given package. The statistics are only kept in memory and written to the database
+     * in batches by {@link #flushMessageStats()}, which happens with a delay or when the database is closed.
+     */
     public synchronized void noteAppMessage(String packageName, int numBytes) {
+        validateCache();
+        if (!knownMessagePackages.contains(packageName)) {
+            SQLiteStatement statement = getStatement(SQL_INSERT_APP_IF_MISSING);
+            statement.bindString(1, packageName);
+            // Only notify if the row was missing, so that other instances don't clear their caches for every message
+            if (statement.executeInsert() != -1) {
+                invalidateCache(packageName);
+                notifyChanged();
+            }
+            knownMessagePackages.add(packageName);
+        }
+        MessageStats stats = pendingMessageStats.get(packageName);
+        if (stats == null) {
+            stats = new MessageStats();
+            pendingMessageStats.put(packageName, stats);
+        }
+        stats.count++;
+        stats.bytes += numBytes;
+        stats.lastTimestamp = System.currentTimeMillis();
+        if (!messageStatsFlushScheduled) {
+            getWriterHandler().postDelayed(flushMessageStatsRunnable, MESSAGE_STATS_FLUSH_DELAY);
+            messageStatsFlushScheduled = true;
+        }
+    }
+
+    /**
+     * Writes all message statistics accumulated by {@link #noteAppMessage(String, int)} in a single transaction.
+     */
+    public synchronized void flushMessageStats() {
+        if (messageStatsFlushScheduled) {
+            getWriterHandler().removeCallbacks(flushMessageStatsRunnable);
+            messageStatsFlushScheduled = false;
+        }
+        if (pendingMessageStats.isEmpty()) return;
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
-
-        App app = getApp(db, packageName);
-        ContentValues cv = new ContentValues();
-        cv.put(FIELD_LAST_MESSAGE_TIMESTAMP, System.currentTimeMillis());
-        if (app == null) {
-            cv.put(FIELD_PACKAGE_NAME, packageName);
-            cv.put(FIELD_TOTAL_MESSAGE_COUNT, 1);
-            cv.put(FIELD_TOTAL_MESSAGE_BYTES, numBytes);
-            db.insert(TABLE_APPS, null, cv);
-        } else {
-            cv.put(FIELD_TOTAL_MESSAGE_COUNT, app.totalMessageCount + 1);
-            cv.put(FIELD_TOTAL_MESSAGE_BYTES, app.totalMessageBytes + numBytes);
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
+        try {
+            for (Map.Entry<String, MessageStats> entry : pendingMessageStats.entrySet()) {
+                // The row might have been removed by another instance since the message was noted
+                SQLiteStatement insert = getStatement(SQL_INSERT_APP_IF_MISSING);
+                insert.bindString(1, entry.getKey());
+                insert.executeInsert();
+                MessageStats stats = entry.getValue();
+                SQLiteStatement statement = getStatement(SQL_UPDATE_MESSAGE_STATS);
+                statement.bindLong(1, stats.count);
+                statement.bindLong(2, stats.bytes);
+                statement.bindLong(3, stats.lastTimestamp);
+                statement.bindString(4, entry.getKey());
+                statement.executeUpdateDelete();
+                appCache.remove(entry.getKey());
+            }
+            db.setTransactionSuccessful();
+            pendingMessageStats.clear();
+        } finally {
+            db.endTransaction();
         }
-
-        db.setTransactionSuccessful();
-        db.endTransaction();
+        notifyChanged();
     }
 
     public synchronized void noteAppRegistered(String packageName, String signature, String registrationId) {
+        invalidateCache(packageName);
         SQLiteDatabase db = getWritableDatabase();
         db.beginTransaction();
+        try {
+            SQLiteStatement statement = getStatement(SQL_UPDATE_LAST_ERROR);
+            statement.bindString(1, "");
+            statement.bindString(2, packageName);
+            if (statement.executeUpdateDelete() == 0) {
+                statement = getStatement(SQL_INSERT_APP_IF_MISSING);
+                statement.bindString(1, packageName);
+                statement.executeInsert();
+            }
 
-        App app = getApp(db, packageName);
-        ContentValues cv = new ContentValues();
-        if (app == null) {
-            cv.put(FIELD_PACKAGE_NAME, packageName);
-            db.insert(TABLE_APPS, null, cv);
-        } else {
-            cv.put(FIELD_LAST_ERROR, "");
-            db.update(TABLE_APPS, cv, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName});
-        }
-
-        ContentValues regCv = new ContentValues();
-        regCv.put(FIELD_PACKAGE_NAME, packageName);
-        regCv.put(FIELD_SIGNATURE, signature);
-        regCv.put(FIELD_REGISTER_ID, registrationId);
-        regCv.put(FIELD_TIMESTAMP, System.currentTimeMillis());
-        db.insertWithOnConflict(TABLE_REGISTRATIONS, null, regCv, SQLiteDatabase.CONFLICT_REPLACE);
+            statement = getStatement(SQL_REPLACE_REGISTRATION);
+            statement.bindString(1, packageName);
+            bindStringOrNull(statement, 2, signature);
+            bindStringOrNull(statement, 3, registrationId);
+            statement.bindLong(4, System.currentTimeMillis());
+            statement.executeInsert();
 
-        db.setTransactionSuccessful();
-        db.endTransaction();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        notifyChanged();
     }
 
     public synchronized void noteAppUnregistered(String packageName, String signature) {
-        SQLiteDatabase db = getWritableDatabase();
-        db.delete(TABLE_REGISTRATIONS, FIELD_PACKAGE_NAME + " LIKE ? AND " + FIELD_SIGNATURE + " LIKE ?", new String[]{packageName, signature});
+        invalidateCache(packageName);
+        SQLiteStatement statement = getStatement(SQL_DELETE_REGISTRATION);
+        statement.bindString(1, packageName);
+        bindStringOrNull(statement, 2, signature);
+        statement.executeUpdateDelete();
+        notifyChanged();
     }
 
-    public App getApp(String packageName) {
-        return getApp(getReadableDatabase(), packageName);
+    /**
+     * Returns the app entry for the given package, served from memory unless it changed since it was last read.
+     */
+    public synchronized App getApp(String packageName) {
+        validateCache();
+        if (appCache.containsKey(packageName)) return appCache.get(packageName);
+        App app = getApp(getReadableDatabase(), packageName);
+        appCache.put(packageName, app);
+        return app;
     }
 
     private App getApp(SQLiteDatabase db, String packageName) {
-        try (Cursor cursor = db.query(TABLE_APPS, null, FIELD_PACKAGE_NAME + " LIKE ?", new String[]{packageName}, null, null, null, "1")) {
+        try (Cursor cursor = db.query(TABLE_APPS, null, FIELD_PACKAGE_NAME + " = ?", new String[]{packageName}, null, null, null, "1")) {
             if (cursor.moveToNext()) {
                 return new App(cursor);
             }
@@ -242,12 +446,26 @@ public class GcmDatabase extends SQLiteOpenHelper {
         return null;
     }
 
-    public Registration getRegistration(String packageName, String signature) {
-        return getRegistration(getReadableDatabase(), packageName, signature);
+    /**
+     * Returns the registration for the given package and signature, served from memory unless it changed since it
+     * was last read.
+     */
+    public synchronized Registration getRegistration(String packageName, String signature) {
+        validateCache();
+        Map<String, Registration> registrations = registrationCache.get(packageName);
+        if (registrations == null) {
+            registrations = new HashMap<>();
+            registrationCache.put(packageName, registrations);
+        } else if (registrations.containsKey(signature)) {
+            return registrations.get(signature);
+        }
+        Registration registration = getRegistration(getReadableDatabase(), packageName, signature);
+        registrations.put(signature, registration);
+        return registration;
     }
 
     private Registration getRegistration(SQLiteDatabase db, String packageName, String signature) {
-        try (Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " LIKE ? AND " + FIELD_SIGNATURE + " LIKE ?", new String[]{packageName, signature}, null, null, null, "1")) {
+        try (Cursor cursor = db.query(TABLE_REGISTRATIONS, null, FIELD_PACKAGE_NAME + " = ? AND " + FIELD_SIGNATURE + " = ?", new String[]{packageName, signature}, null, null, null, "1")) {
             if (cursor.moveToNext()) {
                 return new Registration(cursor);
             }
@@ -280,8 +498,34 @@ public class GcmDatabase extends SQLiteOpenHelper {
         db.endTransaction();
     }
 
+    @Override
+    public synchronized void close() {
+        try {
+            flushMessageStats();
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to write message statistics", e);
+        }
+        for (SQLiteStatement statement : statements.values()) {
+            statement.close();
+        }
+        statements.clear();
+        appCache.clear();
+        registrationCache.clear();
+        cacheGeneration = -1;
+        super.close();
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        throw new IllegalStateException("Upgrades not supported");
+        if (oldVersion < 2) {
+            // Apps known only from registration had no message counters, which are now updated incrementally
+            db.execSQL("UPDATE " + TABLE_APPS + " SET " + FIELD_TOTAL_MESSAGE_COUNT + " = 0 WHERE " + FIELD_TOTAL_MESSAGE_COUNT + " IS NULL");
+            db.execSQL("UPDATE " + TABLE_APPS + " SET " + FIELD_TOTAL_MESSAGE_BYTES + " = 0 WHERE " + FIELD_TOTAL_MESSAGE_BYTES + " IS NULL");
+        }
+    }
+
+    @Override
+    public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Version 2 only changed data, the schema is the same for all versions
     }
 }
\ No newline at end of file
@@ -0,0 +1,261 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Establishes the TLS connection to the MCS server by racing connection attempts.
+ * <p>
+ * Attempts are grouped by port, within a group IPv6 and IPv4 are tried in parallel. The group for the next port is
+ * started after a short delay if the previous one did not complete yet, or right away if all its attempts failed.
+ * The first attempt to complete its TLS handshake wins, all others are aborted. The winning port is remembered per
+ * network and tried first next time.
+ * <p>
+ * All connections share a dedicated {@link SSLContext}, so that its client session cache allows abbreviated handshakes
+ * (session tickets or session ids) when reconnecting to the same host and port.
+ */
+class McsConnector {
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int NEXT_PORT_DELAY_MS = 1000;
+    private static final int SESSION_CACHE_SIZE = 8;
+    private static final int SESSION_TIMEOUT_S = 24 * 60 * 60;
+
+    private final ExecutorService executor;
+    private final Map<String, Integer> preferredPorts = new HashMap<>();
+    private SSLContext sslContext;
+    private SSLSocketFactory socketFactory;
+
+    private final AtomicInteger handshakeCount = new AtomicInteger();
+    private final AtomicInteger resumedHandshakeCount = new AtomicInteger();
+    private final AtomicLong totalHandshakeMs = new AtomicLong();
+    private volatile long lastHandshakeMs = -1;
+    private volatile boolean lastHandshakeResumed;
+
+    McsConnector() {
+        this(null);
+    }
+
+    /**
+     * @param sslContext context to create connections with, or null to use the default trust store
+     */
+    McsConnector(SSLContext sslContext) {
+        this.sslContext = sslContext;
+        executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 30, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "McsConnect");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private synchronized SSLSocketFactory getSocketFactory() throws GeneralSecurityException {
+        if (socketFactory == null) {
+            if (sslContext == null) {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            }
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+            sessionContext.setSessionTimeout(SESSION_TIMEOUT_S);
+            socketFactory = sslContext.getSocketFactory();
+        }
+        return socketFactory;
+    }
+
+    int getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    int getResumedHandshakeCount() {
+        return resumedHandshakeCount.get();
+    }
+
+    long getAverageHandshakeMs() {
+        int count = handshakeCount.get();
+        return count == 0 ? -1 : totalHandshakeMs.get() / count;
+    }
+
+    long getLastHandshakeMs() {
+        return lastHandshakeMs;
+    }
+
+    boolean isLastHandshakeResumed() {
+        return lastHandshakeResumed;
+    }
+
+    /**
+     * @param network key of the network to connect on, used to remember the port that worked
+     * @return a connected socket that completed its TLS handshake
+     */
+    SSLSocket connect(String host, int[] ports, String network) throws Exception {
+        List<List<Attempt>> groups = new ArrayList<>();
+        SSLSocketFactory socketFactory = getSocketFactory();
+        InetAddress[] addresses = InetAddress.getAllByName(host);
+        for (int port : getPortOrder(ports, network)) {
+            List<Attempt> group = new ArrayList<>();
+            InetAddress ipv6 = null, ipv4 = null;
+            for (InetAddress address : addresses) {
+                if (ipv6 == null && address instanceof Inet6Address) ipv6 = address;
+                if (ipv4 == null && address instanceof Inet4Address) ipv4 = address;
+            }
+            if (ipv6 != null) group.add(new Attempt(socketFactory, host, new InetSocketAddress(ipv6, port)));
+            if (ipv4 != null) group.add(new Attempt(socketFactory, host, new InetSocketAddress(ipv4, port)));
+            if (!group.isEmpty()) groups.add(group);
+        }
+        if (groups.isEmpty()) throw new IOException("No address for " + host);
+
+        ExecutorCompletionService<SSLSocket> completionService = new ExecutorCompletionService<>(executor);
+        Map<Future<SSLSocket>, Attempt> running = new HashMap<>();
+        int nextGroup = 0;
+        Exception lastException = null;
+        try {
+            while (true) {
+                if (running.isEmpty()) {
+                    // All previous attempts failed
+                    if (nextGroup >= groups.size()) throw lastException;
+                    start(completionService, running, groups.get(nextGroup++));
+                }
+                Future<SSLSocket> future;
+                if (nextGroup < groups.size()) {
+                    future = completionService.poll(NEXT_PORT_DELAY_MS, TimeUnit.MILLISECONDS);
+                    if (future == null) {
+                        // Taking too long, also try the next port
+                        start(completionService, running, groups.get(nextGroup++));
+                        continue;
+                    }
+                } else {
+                    future = completionService.take();
+                }
+                Attempt attempt = running.remove(future);
+                try {
+                    SSLSocket socket = future.get();
+                    synchronized (preferredPorts) {
+                        preferredPorts.put(network, attempt.address.getPort());
+                    }
+                    handshakeCount.incrementAndGet();
+                    if (attempt.resumed) resumedHandshakeCount.incrementAndGet();
+                    totalHandshakeMs.addAndGet(attempt.handshakeMs);
+                    lastHandshakeMs = attempt.handshakeMs;
+                    lastHandshakeResumed = attempt.resumed;
+                    return socket;
+                } catch (ExecutionException e) {
+                    lastException = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        } finally {
+            for (Attempt attempt : running.values()) {
+                attempt.abort();
+            }
+        }
+    }
+
+    private static void start(ExecutorCompletionService<SSLSocket> completionService, Map<Future<SSLSocket>, Attempt> running, List<Attempt> group) {
+        for (Attempt attempt : group) {
+            running.put(completionService.submit(attempt), attempt);
+        }
+    }
+
+    private List<Integer> getPortOrder(int[] ports, String network) {
+        Integer preferredPort;
+        synchronized (preferredPorts) {
+            preferredPort = preferredPorts.get(network);
+        }
+        List<Integer> order = new ArrayList<>();
+        if (preferredPort != null) order.add(preferredPort);
+        for (int port : ports) {
+            if (!order.contains(port)) order.add(port);
+        }
+        return order;
+    }
+
+    private static class Attempt implements Callable<SSLSocket> {
+        private final SSLSocketFactory socketFactory;
+        private final String host;
+        private final InetSocketAddress address;
+        private Socket socket;
+        private boolean aborted;
+        private volatile long handshakeMs;
+        private volatile boolean resumed;
+
+        Attempt(SSLSocketFactory socketFactory, String host, InetSocketAddress address) {
+            this.socketFactory = socketFactory;
+            this.host = host;
+            this.address = address;
+        }
+
+        @Override
+        public SSLSocket call() throws Exception {
+            Socket plainSocket = new Socket();
+            setSocket(plainSocket);
+            plainSocket.connect(address, CONNECT_TIMEOUT_MS);
+            // Host and port are used as key for the session cache
+            SSLSocket sslSocket = (SSLSocket) socketFactory.createSocket(plainSocket, host, address.getPort(), true);
+            setSocket(sslSocket);
+            enableSessionTickets(sslSocket);
+            sslSocket.setSoTimeout(CONNECT_TIMEOUT_MS);
+            long start = System.currentTimeMillis();
+            sslSocket.startHandshake();
+            handshakeMs = System.currentTimeMillis() - start;
+            // A resumed session was created during an earlier handshake. OpenSSL based providers only keep the creation
+            // time in seconds, so a new session may appear to be created up to a second before the handshake started.
+            resumed = sslSocket.getSession().getCreationTime() < start - start % 1000;
+            sslSocket.setSoTimeout(0);
+            return sslSocket;
+        }
+
+        private static void enableSessionTickets(SSLSocket socket) {
+            try {
+                // Conscrypt only offers session tickets when asked to
+                socket.getClass().getMethod("setUseSessionTickets", boolean.class).invoke(socket, true);
+            } catch (Exception ignored) {
+                // Not supported by this provider, session ids are still used
+            }
+        }
+
+        private synchronized void setSocket(Socket socket) throws IOException {
+            this.socket = socket;
+            if (aborted) {
+                socket.close();
+                throw new IOException("Connection attempt to " + address + " aborted");
+            }
+        }
+
+        synchronized void abort() {
+            aborted = true;
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
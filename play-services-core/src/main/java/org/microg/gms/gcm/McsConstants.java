@@ -33,10 +33,12 @@ public final class McsConstants {
     public static final int MSG_OUTPUT_ERROR = 21;
     public static final int MSG_OUTPUT_READY = 22;
     public static final int MSG_OUTPUT_DONE = 23;
+    public static final int MSG_OUTPUT_FLUSH = 24;
     public static final int MSG_TEARDOWN = 30;
     public static final int MSG_CONNECT = 40;
     public static final int MSG_HEARTBEAT = 41;
     public static final int MSG_ACK = 42;
+    public static final int MSG_OUTBOX_FLUSH = 43;
 
     public static String ACTION_CONNECT = "org.microg.gms.gcm.mcs.CONNECT";
     public static String ACTION_RECONNECT = "org.microg.gms.gcm.mcs.RECONNECT";
@@ -0,0 +1,130 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import com.squareup.wire.ProtoAdapter;
+import com.squareup.wire.ProtoReader32Kt;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads varint-framed MCS stanzas through a reusable buffer.
+ * <p>
+ * The underlying stream is only touched in bulk reads, tag and length are parsed from the buffer and stanza payloads
+ * are decoded directly from it, so no per-frame byte array is allocated. The buffer grows for frames that don't fit
+ * and shrinks back afterwards. Frames larger than {@link #MAX_FRAME_SIZE} are rejected as protocol error.
+ */
+class McsFrameReader {
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    // Far above any real stanza, only guards against allocating huge buffers for a bogus length
+    static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    private final InputStream is;
+    private ByteBuffer buffer;
+
+    McsFrameReader(InputStream is) {
+        this.is = is;
+        this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        this.buffer.flip();
+    }
+
+    /**
+     * @return the next byte from the stream or -1 if the end of the stream was reached.
+     */
+    int readByte() throws IOException {
+        if (!buffer.hasRemaining() && !fill(1)) return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    /**
+     * @return the next varint32 from the stream or -1 if the end of the stream was reached.
+     */
+    int readVarint() throws IOException {
+        int res = 0, shift = 0, read;
+        do {
+            if ((read = readByte()) < 0) return -1;
+            res |= (read & 0x7F) << shift;
+            shift += 7;
+        } while ((read & 0x80) == 0x80 && shift < 35);
+        return res;
+    }
+
+    /**
+     * Decodes the next {@code size} bytes from the stream with the given adapter.
+     */
+    <M> M decode(ProtoAdapter<M> adapter, int size) throws IOException {
+        checkFrameSize(size);
+        if (!fill(size)) throw new EOFException("Stream ended within frame of " + size + " bytes");
+        int position = buffer.position();
+        int offset = buffer.arrayOffset() + position;
+        try {
+            return adapter.decode(ProtoReader32Kt.ProtoReader32(buffer.array(), offset, offset + size));
+        } finally {
+            buffer.position(position + size);
+            shrink();
+        }
+    }
+
+    /**
+     * Discards the next {@code size} bytes from the stream.
+     */
+    void skip(int size) throws IOException {
+        checkFrameSize(size);
+        while (size > 0) {
+            if (!buffer.hasRemaining() && !fill(1)) throw new EOFException();
+            int skipped = Math.min(size, buffer.remaining());
+            buffer.position(buffer.position() + skipped);
+            size -= skipped;
+        }
+    }
+
+    private static void checkFrameSize(int size) throws ProtocolException {
+        if (size > MAX_FRAME_SIZE) {
+            throw new ProtocolException("Frame of " + size + " bytes exceeds maximum of " + MAX_FRAME_SIZE + " bytes");
+        }
+    }
+
+    /**
+     * Replaces a buffer that was grown for a large frame with one of the initial size, once the rest fits into it.
+     */
+    private void shrink() {
+        if (buffer.capacity() <= INITIAL_BUFFER_SIZE || buffer.remaining() > INITIAL_BUFFER_SIZE) return;
+        ByteBuffer smaller = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        smaller.put(buffer);
+        smaller.flip();
+        buffer = smaller;
+    }
+
+    /**
+     * Ensures at least {@code required} bytes are readable from the buffer, growing it if necessary.
+     *
+     * @return false if the end of the stream was reached before enough bytes were available.
+     */
+    private boolean fill(int required) throws IOException {
+        if (buffer.remaining() >= required) return true;
+        if (buffer.capacity() < required) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(required, buffer.capacity() * 2));
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        while (buffer.position() < required) {
+            int read = is.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            if (read < 0) {
+                buffer.flip();
+                return false;
+            }
+            buffer.position(buffer.position() + read);
+        }
+        buffer.flip();
+        return true;
+    }
+}
@@ -48,6 +48,7 @@ public class McsInputStream extends Thread implements Closeable {
     private static final String TAG = "GmsGcmMcsInput";
 
     private final InputStream is;
+    private final McsFrameReader reader;
     private final Handler mainHandler;
 
     private boolean initialized;
@@ -64,6 +65,7 @@ public class McsInputStream extends Thread implements Closeable {
 
     public McsInputStream(InputStream is, Handler mainHandler, boolean initialized) {
         this.is = is;
+        this.reader = new McsFrameReader(is);
         this.mainHandler = mainHandler;
         this.initialized = initialized;
         setName("McsInputStream");
@@ -119,7 +121,7 @@ public class McsInputStream extends Thread implements Closeable {
     private synchronized void ensureVersionRead() {
         if (!initialized) {
             try {
-                version = is.read();
+                version = reader.readByte();
                 Log.d(TAG, "Reading from MCS version: " + version);
                 initialized = true;
             } catch (IOException e) {
@@ -130,43 +132,39 @@ public class McsInputStream extends Thread implements Closeable {
 
     public synchronized android.os.Message read() throws IOException {
         ensureVersionRead();
-        int mcsTag = is.read();
-        int mcsSize = readVarint();
+        int mcsTag = reader.readByte();
+        int mcsSize = reader.readVarint();
         if (mcsTag < 0 || mcsSize < 0) {
             Log.w(TAG, "mcsTag: " + mcsTag + " mcsSize: " + mcsSize);
             return null;
         }
-        byte[] bytes = new byte[mcsSize];
-        int len = 0, read = 0;
-        while (len < mcsSize && read >= 0) {
-            len += (read = is.read(bytes, len, mcsSize - len)) < 0 ? 0 : read;
-        }
-        Message message = read(mcsTag, bytes, len);
+        Message message = read(mcsTag, mcsSize);
         if (message == null) return null;
-        Log.d(TAG, "Incoming message: " + message);
         streamId++;
+        McsTrace.incoming(mcsTag, mcsSize, streamId, message);
         return mainHandler.obtainMessage(MSG_INPUT, mcsTag, streamId, message);
     }
 
-    private static Message read(int mcsTag, byte[] bytes, int len) throws IOException {
+    private Message read(int mcsTag, int mcsSize) throws IOException {
         try {
             switch (mcsTag) {
                 case MCS_HEARTBEAT_PING_TAG:
-                    return HeartbeatPing.ADAPTER.decode(bytes);
+                    return reader.decode(HeartbeatPing.ADAPTER, mcsSize);
                 case MCS_HEARTBEAT_ACK_TAG:
-                    return HeartbeatAck.ADAPTER.decode(bytes);
+                    return reader.decode(HeartbeatAck.ADAPTER, mcsSize);
                 case MCS_LOGIN_REQUEST_TAG:
-                    return LoginRequest.ADAPTER.decode(bytes);
+                    return reader.decode(LoginRequest.ADAPTER, mcsSize);
                 case MCS_LOGIN_RESPONSE_TAG:
-                    return LoginResponse.ADAPTER.decode(bytes);
+                    return reader.decode(LoginResponse.ADAPTER, mcsSize);
                 case MCS_CLOSE_TAG:
-                    return Close.ADAPTER.decode(bytes);
+                    return reader.decode(Close.ADAPTER, mcsSize);
                 case MCS_IQ_STANZA_TAG:
-                    return IqStanza.ADAPTER.decode(bytes);
+                    return reader.decode(IqStanza.ADAPTER, mcsSize);
                 case MCS_DATA_MESSAGE_STANZA_TAG:
-                    return DataMessageStanza.ADAPTER.decode(bytes);
+                    return reader.decode(DataMessageStanza.ADAPTER, mcsSize);
                 default:
                     Log.w(TAG, "Unknown tag: " + mcsTag);
+                    reader.skip(mcsSize);
                     return null;
             }
         } catch (IllegalStateException e) {
@@ -174,13 +172,4 @@ public class McsInputStream extends Thread implements Closeable {
             return null;
         }
     }
-
-    private int readVarint() throws IOException {
-        int res = 0, s = -7, read;
-        do {
-            res |= ((read = is.read()) & 0x7F) << (s += 7);
-        } while (read >= 0 && (read & 0x80) == 0x80 && s < 32);
-        if (read < 0) return -1;
-        return res;
-    }
 }
@@ -22,21 +22,31 @@ import android.util.Log;
 
 import com.squareup.wire.Message;
 
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_DONE;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_ERROR;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_FLUSH;
 import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_READY;
 import static org.microg.gms.gcm.McsConstants.MSG_TEARDOWN;
 
 public class McsOutputStream extends Thread implements Handler.Callback, Closeable {
     private static final String TAG = "GmsGcmMcsOutput";
+    // Stanzas queued within this window are written with a single TLS write
+    private static final int COALESCE_WINDOW_MS = 20;
+    // Flush early once a batch would no longer fit into a single TLS record
+    private static final int MAX_BATCH_SIZE = 16 * 1024;
 
     private final OutputStream os;
+    private ByteArrayOutputStream batch = new ByteArrayOutputStream(MAX_BATCH_SIZE);
+    private final List<android.os.Message> batchMessages = new ArrayList<>();
     private boolean initialized;
     private int version = MCS_VERSION_CODE;
     private int streamId = 0;
@@ -74,15 +84,30 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
         switch (msg.what) {
             case MSG_OUTPUT:
                 try {
-                    Log.d(TAG, "Outgoing message: " + msg.obj);
-                    writeInternal((Message) msg.obj, msg.arg1);
-                    mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_DONE, msg.arg1, msg.arg2, msg.obj));
-                } catch (IOException e) {
-                    if (closed) {
-                        Log.d(TAG, "We were closed already. Ignoring IOException");
-                    } else {
-                        mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_ERROR, e));
+                    Message message = (Message) msg.obj;
+                    int size = message.adapter().encodedSize(message);
+                    // A stanza that doesn't fit into a batch on its own is written alone
+                    if (!batchMessages.isEmpty() && batch.size() + 1 + varintSize(size) + size > MAX_BATCH_SIZE) {
+                        flushInternal();
+                    }
+                    enqueueInternal(message, msg.arg1, size);
+                    android.os.Message queued = android.os.Message.obtain(msg);
+                    queued.arg2 = size;
+                    batchMessages.add(queued);
+                    if (batch.size() >= MAX_BATCH_SIZE) {
+                        flushInternal();
+                    } else if (!myHandler.hasMessages(MSG_OUTPUT_FLUSH)) {
+                        myHandler.sendEmptyMessageDelayed(MSG_OUTPUT_FLUSH, COALESCE_WINDOW_MS);
                     }
+                } catch (IOException e) {
+                    handleError(e);
+                }
+                return true;
+            case MSG_OUTPUT_FLUSH:
+                try {
+                    flushInternal();
+                } catch (IOException e) {
+                    handleError(e);
                 }
                 return true;
             case MSG_TEARDOWN:
@@ -108,18 +133,60 @@ public class McsOutputStream extends Thread implements Handler.Callback, Closeab
         }
     }
 
-    private synchronized void writeInternal(Message message, int tag) throws IOException {
+    private void handleError(IOException e) {
+        if (closed) {
+            Log.d(TAG, "We were closed already. Ignoring IOException");
+        } else {
+            mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_ERROR, e));
+        }
+    }
+
+    private synchronized void enqueueInternal(Message message, int tag, int size) throws IOException {
         if (!initialized) {
             Log.d(TAG, "Write MCS version code: " + version);
-            os.write(version);
+            batch.write(version);
             initialized = true;
         }
-        os.write(tag);
-        byte[] bytes = message.encode();
-        writeVarint(os, bytes.length);
-        os.write(bytes);
-        os.flush();
-        streamId++;
+        batch.write(tag);
+        writeVarint(batch, size);
+        message.encode(batch);
+    }
+
+    /**
+     * Writes all queued stanzas to the socket at once and reports them as done.
+     */
+    private synchronized void flushInternal() throws IOException {
+        myHandler.removeMessages(MSG_OUTPUT_FLUSH);
+        if (batchMessages.isEmpty()) return;
+        try {
+            batch.writeTo(os);
+            os.flush();
+            for (android.os.Message msg : batchMessages) {
+                streamId++;
+                McsTrace.outgoing(msg.arg1, msg.arg2, streamId, (Message) msg.obj);
+                mainHandler.dispatchMessage(mainHandler.obtainMessage(MSG_OUTPUT_DONE, msg.arg1, streamId, msg.obj));
+            }
+        } finally {
+            if (batch.size() > MAX_BATCH_SIZE) {
+                // Don't keep the capacity grown for an oversized stanza
+                batch = new ByteArrayOutputStream(MAX_BATCH_SIZE);
+            } else {
+                batch.reset();
+            }
+            for (android.os.Message msg : batchMessages) {
+                msg.recycle();
+            }
+            batchMessages.clear();
+        }
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
     }
 
     private void writeVarint(OutputStream os, int value) throws IOException {
@@ -16,17 +16,15 @@
 
 package org.microg.gms.gcm;
 
-import android.annotation.SuppressLint;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.pm.PackageManager;
-import android.content.pm.PermissionInfo;
 import android.content.pm.ResolveInfo;
 import android.net.ConnectivityManager;
+import android.net.Network;
 import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.Handler;
@@ -36,12 +34,9 @@ import android.os.Messenger;
 import android.os.Parcelable;
 import android.os.PowerManager;
 import android.os.SystemClock;
-import android.os.UserHandle;
 import android.util.Base64;
 import android.util.Log;
 
-import androidx.annotation.Nullable;
-import androidx.annotation.RequiresApi;
 import androidx.legacy.content.WakefulBroadcastReceiver;
 
 import com.squareup.wire.Message;
@@ -53,17 +48,18 @@ import org.microg.gms.common.PackageUtils;
 import org.microg.gms.gcm.mcs.AppData;
 import org.microg.gms.gcm.mcs.Close;
 import org.microg.gms.gcm.mcs.DataMessageStanza;
-import org.microg.gms.gcm.mcs.Extension;
 import org.microg.gms.gcm.mcs.HeartbeatAck;
+import org.microg.gms.gcm.mcs.HeartbeatConfig;
 import org.microg.gms.gcm.mcs.HeartbeatPing;
+import org.microg.gms.gcm.mcs.HeartbeatStat;
 import org.microg.gms.gcm.mcs.IqStanza;
 import org.microg.gms.gcm.mcs.LoginRequest;
 import org.microg.gms.gcm.mcs.LoginResponse;
 import org.microg.gms.gcm.mcs.Setting;
 
 import java.io.Closeable;
-import java.lang.reflect.Field;
-import java.lang.reflect.Method;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
@@ -72,8 +68,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.SSLContext;
-
 import okio.ByteString;
 
 import static android.app.AlarmManager.ELAPSED_REALTIME_WAKEUP;
@@ -99,16 +93,29 @@ public class McsService extends Service implements Handler.Callback {
     private static final int WAKELOCK_TIMEOUT = 5000;
     // On bad mobile network a ping can take >60s, so we wait for an ACK for 90s
     private static final int HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS = 90000;
+    private static final int DELIVERY_THREADS = 2;
+    private static final int DELIVERY_QUEUE_CAPACITY = 256;
+    // Raw data is sent twice (as is and base64 encoded) with every broadcast, keep well below the binder transaction limit
+    private static final int MAX_RAW_DATA_SIZE = 128 * 1024;
 
     private static long lastHeartbeatPingElapsedRealtime = -1;
     private static long lastHeartbeatAckElapsedRealtime = -1;
     private static long lastIncomingNetworkRealtime = 0;
     private static long startTimestamp = 0;
+    // Adaptive heartbeat as configured by the server on login
+    private static int serverHeartbeatMs = -1;
+    private static String heartbeatConfigIp;
+    private static boolean uploadHeartbeatStat;
+    private static int lastHeartbeatMs = -1;
+    private static boolean heartbeatTimedOut;
     public static String activeNetworkPref = null;
     private boolean wasTornDown = false;
     private AtomicInteger nextMessageId = new AtomicInteger(0x1000000);
 
+    private static final McsConnector connector = new McsConnector();
+    private static final DeliveryQueue deliveryQueue = new DeliveryQueue(DELIVERY_THREADS, DELIVERY_QUEUE_CAPACITY);
     private static Socket sslSocket;
+    private static volatile Network connectedNetwork;
     private static McsInputStream inputStream;
     private static McsOutputStream outputStream;
 
@@ -118,29 +125,23 @@ public class McsService extends Service implements Handler.Callback {
     private static Handler rootHandler;
 
     private GcmDatabase database;
+    private PackageInfoCache packageInfoCache;
+    private PersistentIdLedger persistentIds;
+    private AckScheduler ackScheduler;
+    private BroadcastScheduler broadcastScheduler;
+    private UpstreamOutbox outbox;
+    private volatile boolean loggedIn;
+    private volatile long loggedInSince;
 
     private AlarmManager alarmManager;
     private PowerManager powerManager;
     private static PowerManager.WakeLock wakeLock;
 
-    private static long currentDelay = 0;
-
     private Intent connectIntent;
 
     private static int maxTtl = 24 * 60 * 60;
 
-    @Nullable
-    private Method getUserIdMethod;
-    @Nullable
-    private Object deviceIdleController;
-    @Nullable
-    private Method addPowerSaveTempWhitelistAppMethod;
-    @Nullable
-    @RequiresApi(31)
-    private Object powerExemptionManager;
-    @Nullable
-    @RequiresApi(31)
-    private Method addToTemporaryAllowListMethod;
+    private DeviceIdleAllowlist deviceIdleAllowlist;
 
     private class HandlerThread extends Thread {
 
@@ -164,47 +165,28 @@ public class McsService extends Service implements Handler.Callback {
         }
     }
 
-    private static void logd(Context context, String msg) {
-        if (context == null || GcmPrefs.get(context).isGcmLogEnabled()) Log.d(TAG, msg);
+    /**
+     * Logs connection events, if verbose tracing is enabled.
+     */
+    private static void logd(String format, Object... args) {
+        McsTrace.log(TAG, format, args);
     }
 
     @Override
-    @SuppressLint("PrivateApi")
     public void onCreate() {
         super.onCreate();
         TriggerReceiver.register(this);
+        ReconnectScheduler.register(this);
         database = new GcmDatabase(this);
+        McsTrace.setVerbose(GcmPrefs.get(this).isGcmLogEnabled());
+        packageInfoCache = new PackageInfoCache(this);
+        packageInfoCache.register();
+        persistentIds = new PersistentIdLedger(this);
+        outbox = new UpstreamOutbox(this);
         heartbeatIntent = PendingIntent.getService(this, 0, new Intent(ACTION_HEARTBEAT, null, this, McsService.class), PendingIntent.FLAG_IMMUTABLE);
         alarmManager = (AlarmManager) getSystemService(ALARM_SERVICE);
         powerManager = (PowerManager) getSystemService(POWER_SERVICE);
-        if (SDK_INT >= 23 && checkSelfPermission("android.permission.CHANGE_DEVICE_IDLE_TEMP_WHITELIST") == PackageManager.PERMISSION_GRANTED) {
-            try {
-                if (SDK_INT >= 31) {
-                    Class<?> powerExemptionManagerClass = Class.forName("android.os.PowerExemptionManager");
-                    powerExemptionManager = getSystemService(powerExemptionManagerClass);
-                    addToTemporaryAllowListMethod =
-                            powerExemptionManagerClass.getMethod("addToTemporaryAllowList", String.class, int.class, String.class, long.class);
-                } else {
-                    String deviceIdleControllerName = "deviceidle";
-                    try {
-                        Field field = Context.class.getField("DEVICE_IDLE_CONTROLLER");
-                        deviceIdleControllerName = (String) field.get(null);
-                    } catch (Exception ignored) {
-                    }
-                    IBinder binder = (IBinder) Class.forName("android.os.ServiceManager")
-                            .getMethod("getService", String.class).invoke(null, deviceIdleControllerName);
-                    if (binder != null) {
-                        deviceIdleController = Class.forName("android.os.IDeviceIdleController$Stub")
-                                .getMethod("asInterface", IBinder.class).invoke(null, binder);
-                        getUserIdMethod = UserHandle.class.getMethod("getUserId", int.class);
-                        addPowerSaveTempWhitelistAppMethod = deviceIdleController.getClass()
-                                .getMethod("addPowerSaveTempWhitelistApp", String.class, long.class, int.class, String.class);
-                    }
-                }
-            } catch (Exception e) {
-                Log.w(TAG, e);
-            }
-        }
+        deviceIdleAllowlist = new DeviceIdleAllowlist(this);
         synchronized (McsService.class) {
             if (handlerThread == null) {
                 handlerThread = new HandlerThread();
@@ -223,6 +205,9 @@ public class McsService extends Service implements Handler.Callback {
         Log.d(TAG, "onDestroy");
         alarmManager.cancel(heartbeatIntent);
         closeAll();
+        packageInfoCache.unregister();
+        persistentIds.close();
+        outbox.flush();
         database.close();
         super.onDestroy();
     }
@@ -232,10 +217,18 @@ public class McsService extends Service implements Handler.Callback {
         return null;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Connected: " + (inputStream != null && inputStream.isAlive()) + ", network: " + activeNetworkPref);
+        writer.println("TLS handshakes: " + connector.getHandshakeCount() + ", resumed: " + connector.getResumedHandshakeCount() + ", average: " + connector.getAverageHandshakeMs() + "ms");
+        writer.println("Delivery queue depth: " + deliveryQueue.getDepth() + ", max: " + deliveryQueue.getMaxDepth() + ", delivered: " + deliveryQueue.getDeliveredCount());
+        McsTrace.dump(writer);
+    }
+
     public synchronized static boolean isConnected(Context context) {
         warnIfNotPersistentProcess(McsService.class);
         if (inputStream == null || !inputStream.isAlive() || outputStream == null || !outputStream.isAlive()) {
-            logd(null, "Connection is not enabled or dead.");
+            logd("Connection is not enabled or dead.");
             return false;
         }
         // consider connection to be dead if we did not receive an ack within 90s to our ping
@@ -248,7 +241,8 @@ public class McsService extends Service implements Handler.Callback {
             boolean noAckReceived = lastHeartbeatAckElapsedRealtime < lastHeartbeatPingElapsedRealtime;
             long timeSinceLastPing = SystemClock.elapsedRealtime() - lastHeartbeatPingElapsedRealtime;
             if (noAckReceived && timeSinceLastPing > HEARTBEAT_ACK_AFTER_PING_TIMEOUT_MS) {
-                logd(null, "No heartbeat for " + timeSinceLastPing / 1000 + "s, connection assumed to be dead after 90s");
+                logd("No heartbeat for %ds, connection assumed to be dead after 90s", timeSinceLastPing / 1000);
+                heartbeatTimedOut = true;
                 GcmPrefs.get(context).learnTimeout(context, activeNetworkPref);
                 return false;
             }
@@ -256,15 +250,48 @@ public class McsService extends Service implements Handler.Callback {
         return true;
     }
 
+    /**
+     * Tears down the connection if it was made over another network than the new default network.
+     */
+    static void onDefaultNetworkChanged(Network network) {
+        Handler handler = rootHandler;
+        Network current = connectedNetwork;
+        if (handler != null && current != null && !current.equals(network)) {
+            logd("Default network changed, connection is stale.");
+            handler.sendMessage(handler.obtainMessage(MSG_TEARDOWN, "default network changed"));
+        }
+    }
+
     public static long getStartTimestamp() {
         warnIfNotPersistentProcess(McsService.class);
         return startTimestamp;
     }
 
+    public static int getTlsHandshakeCount() {
+        return connector.getHandshakeCount();
+    }
+
+    public static int getTlsResumedHandshakeCount() {
+        return connector.getResumedHandshakeCount();
+    }
+
+    public static long getTlsAverageHandshakeMs() {
+        return connector.getAverageHandshakeMs();
+    }
+
+    public static int getDeliveryQueueDepth() {
+        return deliveryQueue.getDepth();
+    }
+
+    public static int getMaxDeliveryQueueDepth() {
+        return deliveryQueue.getMaxDepth();
+    }
+
     public static void scheduleReconnect(Context context) {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
-        long delay = getCurrentDelay();
-        logd(context, "Scheduling reconnect in " + delay / 1000 + " seconds...");
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        long delay = ReconnectScheduler.getNextDelay(GcmPrefs.get(context).getNetworkPrefForInfo(cm.getActiveNetworkInfo()));
+        logd("Scheduling reconnect in %d seconds...", delay / 1000);
         PendingIntent pi = PendingIntent.getBroadcast(context, 1, new Intent(ACTION_RECONNECT, null, context, TriggerReceiver.class), PendingIntent.FLAG_IMMUTABLE);
         if (SDK_INT >= 23) {
             alarmManager.setExactAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + delay, pi);
@@ -276,11 +303,12 @@ public class McsService extends Service implements Handler.Callback {
     public void scheduleHeartbeat(Context context) {
         AlarmManager alarmManager = (AlarmManager) context.getSystemService(ALARM_SERVICE);
 
-        int heartbeatMs = GcmPrefs.get(this).getHeartbeatMsFor(activeNetworkPref);
+        int heartbeatMs = GcmPrefs.get(this).getHeartbeatMsFor(activeNetworkPref, serverHeartbeatMs);
         if (heartbeatMs < 0) {
             closeAll();
         }
-        logd(context, "Scheduling heartbeat in " + heartbeatMs / 1000 + " seconds...");
+        lastHeartbeatMs = heartbeatMs;
+        logd("Scheduling heartbeat in %d seconds...", heartbeatMs / 1000);
         if (SDK_INT >= 23) {
             // This is supposed to work even when running in idle and without battery optimization disabled
             alarmManager.setExactAndAllowWhileIdle(ELAPSED_REALTIME_WAKEUP, SystemClock.elapsedRealtime() + heartbeatMs, heartbeatIntent);
@@ -295,20 +323,11 @@ public class McsService extends Service implements Handler.Callback {
 
     }
 
-    public synchronized static long getCurrentDelay() {
-        long delay = currentDelay == 0 ? 5000 : currentDelay;
-        if (currentDelay < 60000) currentDelay += 10000;
-        if (currentDelay >= 60000 && currentDelay < 600000) currentDelay += 60000;
-        return delay;
-    }
-
-    public synchronized static void resetCurrentDelay() {
-        currentDelay = 0;
-    }
-
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        // Pick up changes of the log setting
+        McsTrace.setVerbose(GcmPrefs.get(this).isGcmLogEnabled());
         ForegroundServiceContext.completeForegroundService(this, intent, TAG);
         synchronized (McsService.class) {
             if (rootHandler != null) {
@@ -357,15 +376,14 @@ public class McsService extends Service implements Handler.Callback {
         intent.removeExtra(EXTRA_APP);
 
         int ttl;
+        int delay;
         try {
-            if (intent.hasExtra(EXTRA_TTL)) {
-                ttl = Integer.parseInt(intent.getStringExtra(EXTRA_TTL));
-                if (ttl < 0 || ttl > maxTtl) {
-                    ttl = maxTtl;
-                }
-            } else {
+            // Apps provide these as number or as string
+            ttl = getIntExtra(intent, EXTRA_TTL, maxTtl);
+            if (ttl < 0 || ttl > maxTtl) {
                 ttl = maxTtl;
             }
+            delay = Math.max(0, getIntExtra(intent, EXTRA_DELAY, 0));
         } catch (NumberFormatException e) {
             // TODO: error TtlUnsupported
             Log.w(TAG, e);
@@ -386,7 +404,7 @@ public class McsService extends Service implements Handler.Callback {
             from = intent.getStringExtra(EXTRA_FROM);
         }
         if (from == null) {
-            GcmDatabase.Registration reg = database.getRegistration(packageName, PackageUtils.firstSignatureDigest(this, packageName));
+            GcmDatabase.Registration reg = database.getRegistration(packageName, packageInfoCache.getSignatureDigest(packageName));
             if (reg != null) from = reg.registerId;
         }
         if (from == null) {
@@ -424,21 +442,91 @@ public class McsService extends Service implements Handler.Callback {
                     .raw_data(rawData)
                     .app_data(appData).build();
 
-            send(MCS_DATA_MESSAGE_STANZA_TAG, msg);
+            long now = System.currentTimeMillis();
+            UpstreamOutbox.Entry entry = new UpstreamOutbox.Entry(packageName, messageId, now + delay * 1000L, now + ttl * 1000L, msg);
+            if (!outbox.add(entry)) {
+                Log.w(TAG, "Outbox full, dropping message from " + packageName);
+                sendUpstreamResult(entry, ERROR_SERVICE_NOT_AVAILABLE);
+                return;
+            }
             database.noteAppMessage(packageName, DataMessageStanza.ADAPTER.encodedSize(msg));
+            rootHandler.sendEmptyMessage(MSG_OUTBOX_FLUSH);
         } catch (Exception e) {
             Log.w(TAG, e);
         }
     }
 
-    private void connect(int port) throws Exception {
+    private static int getIntExtra(Intent intent, String key, int defaultValue) {
+        Object value = intent.getExtras().get(key);
+        if (value instanceof Number) return ((Number) value).intValue();
+        if (value instanceof String) return Integer.parseInt((String) value);
+        return defaultValue;
+    }
+
+    /**
+     * Sends out messages from the outbox that are due, reports expired ones and schedules the next run.
+     */
+    private void flushOutbox() {
+        long now = System.currentTimeMillis();
+        McsOutputStream os = outputStream;
+        if (loggedIn && os != null && os.isAlive()) {
+            List<UpstreamOutbox.Entry> due = outbox.takeDue(now, loggedInSince, os);
+            if (!due.isEmpty()) logd("Sending %d upstream messages", due.size());
+            for (UpstreamOutbox.Entry entry : due) {
+                send(MCS_DATA_MESSAGE_STANZA_TAG, entry.stanza);
+            }
+        }
+        for (UpstreamOutbox.Entry entry : outbox.removeExpired(now)) {
+            logd("Upstream message from %s expired", entry.packageName);
+            sendUpstreamResult(entry, ERROR_SERVICE_NOT_AVAILABLE);
+        }
+        rootHandler.removeMessages(MSG_OUTBOX_FLUSH);
+        long next = outbox.getNextDeadline();
+        if (next >= 0) {
+            rootHandler.sendEmptyMessageDelayed(MSG_OUTBOX_FLUSH, Math.max(0, next - now) + 1);
+        }
+    }
+
+    /**
+     * Reports the result of an upstream message to the sending app.
+     *
+     * @param error the error or null if the message was sent successfully
+     */
+    private void sendUpstreamResult(UpstreamOutbox.Entry entry, String error) {
+        if (entry.messageId == null) return;
+        Intent intent = new Intent(ACTION_C2DM_RECEIVE);
+        intent.setPackage(entry.packageName);
+        intent.putExtra(EXTRA_MESSAGE_ID, entry.messageId);
+        if (error == null) {
+            intent.putExtra(EXTRA_MESSAGE_TYPE, MESSAGE_TYPE_SEND_EVENT);
+        } else {
+            intent.putExtra(EXTRA_MESSAGE_TYPE, MESSAGE_TYPE_SEND_ERROR);
+            intent.putExtra(EXTRA_ERROR, error);
+        }
+        sendOrderedBroadcast(intent, null);
+    }
+
+    static Integer getLastStreamIdReceived(Message message) {
+        if (message instanceof DataMessageStanza) return ((DataMessageStanza) message).last_stream_id_received;
+        if (message instanceof HeartbeatPing) return ((HeartbeatPing) message).last_stream_id_received;
+        if (message instanceof HeartbeatAck) return ((HeartbeatAck) message).last_stream_id_received;
+        if (message instanceof IqStanza) return ((IqStanza) message).last_stream_id_received;
+        if (message instanceof LoginResponse) return ((LoginResponse) message).last_stream_id_received;
+        return null;
+    }
+
+    private void connect(Socket socket) throws Exception {
         this.wasTornDown = false;
 
-        logd(this, "Starting MCS connection to port " + port + "...");
-        Socket socket = new Socket(SERVICE_HOST, port);
-        logd(this, "Connected to " + SERVICE_HOST + ":" + port);
-        sslSocket = SSLContext.getDefault().getSocketFactory().createSocket(socket, SERVICE_HOST, port, true);
-        logd(this, "Activated SSL with " + SERVICE_HOST + ":" + port);
+        sslSocket = socket;
+        loggedIn = false;
+        if (ackScheduler == null) ackScheduler = new AckScheduler(persistentIds, rootHandler);
+        // The previous connection might have been closed without a teardown
+        ackScheduler.reset();
+        if (broadcastScheduler == null) broadcastScheduler = new BroadcastScheduler(this, rootHandler, deviceIdleAllowlist::allowlist);
+        serverHeartbeatMs = -1;
+        connectedNetwork = ((ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE)).getActiveNetwork();
+        logd("Connected to %s:%d, TLS handshake took %dms%s", socket.getInetAddress(), socket.getPort(), connector.getLastHandshakeMs(), connector.isLastHandshakeResumed() ? " (resumed)" : "");
         inputStream = new McsInputStream(sslSocket.getInputStream(), rootHandler);
         outputStream = new McsOutputStream(sslSocket.getOutputStream(), rootHandler);
         inputStream.start();
@@ -453,34 +541,33 @@ public class McsService extends Service implements Handler.Callback {
 
     private synchronized void connect() {
         closeAll();
+        // The previous connection might have been closed without a teardown, messages sent on it need to be sent again
+        loggedIn = false;
+        outbox.onDisconnected();
+        McsTrace.setVerbose(GcmPrefs.get(this).isGcmLogEnabled());
 
         ConnectivityManager cm = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
         NetworkInfo activeNetworkInfo = cm.getActiveNetworkInfo();
         activeNetworkPref = GcmPrefs.get(this).getNetworkPrefForInfo(activeNetworkInfo);
         if (!GcmPrefs.get(this).isEnabledFor(activeNetworkInfo)) {
             if (activeNetworkInfo != null) {
-                logd(this, "Don't connect, because disabled for " + activeNetworkInfo.getTypeName());
+                logd("Don't connect, because disabled for %s", activeNetworkInfo.getTypeName());
             } else {
-                logd(this, "Don't connect, no active network");
+                logd("Don't connect, no active network");
             }
             scheduleReconnect(this);
             return;
         }
 
-        Exception exception = null;
-        for (int port : SERVICE_PORTS) {
-            try {
-                connect(port);
-                return;
-            } catch (Exception e) {
-                exception = e;
-                Log.w(TAG, "Exception while connecting to " + SERVICE_HOST + ":" + port, e);
-                closeAll();
-            }
+        try {
+            logd("Starting MCS connection to %s...", SERVICE_HOST);
+            connect(connector.connect(SERVICE_HOST, SERVICE_PORTS, activeNetworkPref));
+        } catch (Exception e) {
+            Log.w(TAG, "Exception while connecting to " + SERVICE_HOST, e);
+            closeAll();
+            logd("Unable to connect to all different ports, retrying later");
+            rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, e));
         }
-
-        logd(this, "Unable to connect to all different ports, retrying later");
-        rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, exception));
     }
 
     private void handleClose(Close close) {
@@ -489,22 +576,51 @@ public class McsService extends Service implements Handler.Callback {
 
     private void handleLoginResponse(LoginResponse loginResponse) {
         if (loginResponse.error == null) {
-            GcmPrefs.clearLastPersistedId(this);
-            logd(this, "Logged in");
+            // All ids were sent with the login request
+            persistentIds.clear();
+            logd("Logged in");
+            handleHeartbeatConfig(loginResponse.heartbeat_config);
+            loggedInSince = System.currentTimeMillis();
+            loggedIn = true;
+            rootHandler.sendEmptyMessage(MSG_OUTBOX_FLUSH);
             wakeLock.release();
         } else {
             throw new RuntimeException("Could not login: " + loginResponse.error);
         }
     }
 
-    private void handleCloudMessage(DataMessageStanza message) {
-        if (message.persistent_id != null) {
-            GcmPrefs.get(this).extendLastPersistedId(this, message.persistent_id);
+    private void handleHeartbeatConfig(HeartbeatConfig config) {
+        if (config == null) return;
+        heartbeatConfigIp = config.ip;
+        uploadHeartbeatStat = Boolean.TRUE.equals(config.upload_stat);
+        if (config.interval_ms != null && config.interval_ms > 0) {
+            logd("Server requested heartbeat interval of %d seconds", config.interval_ms / 1000);
+            serverHeartbeatMs = config.interval_ms;
+            scheduleHeartbeat(this);
         }
+    }
+
+    /**
+     * @return statistics about the heartbeat of the previous connection, if requested by the server.
+     */
+    private HeartbeatStat buildHeartbeatStat() {
+        if (!uploadHeartbeatStat || heartbeatConfigIp == null || lastHeartbeatMs <= 0) return null;
+        HeartbeatStat stat = new HeartbeatStat.Builder()
+                .ip(heartbeatConfigIp)
+                .timeout(heartbeatTimedOut)
+                .interval_ms(lastHeartbeatMs)
+                .build();
+        heartbeatTimedOut = false;
+        return stat;
+    }
+
+    private void handleCloudMessage(DataMessageStanza message) throws InterruptedException {
+        ackScheduler.onMessage(message.persistent_id);
         if (SELF_CATEGORY.equals(message.category)) {
             handleSelfMessage(message);
         } else {
-            handleAppMessage(message);
+            // Delivery can be slow, don't block reading further messages
+            deliveryQueue.enqueue(message.category, () -> handleAppMessage(message));
         }
     }
 
@@ -525,7 +641,8 @@ public class McsService extends Service implements Handler.Callback {
     private LoginRequest buildLoginRequest() {
         LastCheckinInfo info = LastCheckinInfo.read(this);
         return new LoginRequest.Builder()
-                .adaptive_heartbeat(false)
+                .adaptive_heartbeat(true)
+                .heartbeat_stat(buildHeartbeatStat())
                 .auth_service(LoginRequest.AuthService.ANDROID_ID)
                 .auth_token(Long.toString(info.getSecurityToken()))
                 .id("android-" + SDK_INT)
@@ -536,12 +653,16 @@ public class McsService extends Service implements Handler.Callback {
                 .user(Long.toString(info.getAndroidId()))
                 .use_rmq2(true)
                 .setting(Collections.singletonList(new Setting.Builder().name("new_vc").value_("1").build()))
-                .received_persistent_id(GcmPrefs.get(this).getLastPersistedIds())
+                .received_persistent_id(persistentIds.getIds())
                 .build();
     }
 
     private void handleAppMessage(DataMessageStanza msg) {
         String packageName = msg.category;
+        if (msg.raw_data != null && msg.raw_data.size() > MAX_RAW_DATA_SIZE) {
+            Log.w(TAG, "Dropping message for " + packageName + ", raw data of " + msg.raw_data.size() + " bytes exceeds limit");
+            return;
+        }
         database.noteAppMessage(packageName, DataMessageStanza.ADAPTER.encodedSize(msg));
         GcmDatabase.App app = database.getApp(packageName);
 
@@ -554,8 +675,10 @@ public class McsService extends Service implements Handler.Callback {
         if (msg.persistent_id != null) intent.putExtra(EXTRA_MESSAGE_ID, msg.persistent_id);
         if (msg.token != null) intent.putExtra(EXTRA_COLLAPSE_KEY, msg.token);
         if (msg.raw_data != null) {
-            intent.putExtra(EXTRA_RAWDATA_BASE64, Base64.encodeToString(msg.raw_data.toByteArray(), Base64.DEFAULT));
-            intent.putExtra(EXTRA_RAWDATA, msg.raw_data.toByteArray());
+            // Copy once, the same array is shared by the intents for all receivers
+            byte[] rawData = msg.raw_data.toByteArray();
+            intent.putExtra(EXTRA_RAWDATA_BASE64, Base64.encodeToString(rawData, Base64.DEFAULT));
+            intent.putExtra(EXTRA_RAWDATA, rawData);
         }
         if (app.wakeForDelivery) {
             intent.addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
@@ -570,66 +693,36 @@ public class McsService extends Service implements Handler.Callback {
             intent.putExtra(appData.key, appData.value_);
         }
 
-        String receiverPermission = null;
-        try {
-            String name = packageName + ".permission.C2D_MESSAGE";
-            PermissionInfo info = getPackageManager().getPermissionInfo(name, 0);
-            if (info.packageName.equals(packageName)) {
-                receiverPermission = name;
-            }
-        } catch (Exception ignored) {
-            // Keep null, no valid permission found
-        }
+        String receiverPermission = packageInfoCache.getReceiverPermission(packageName);
+        List<BroadcastScheduler.Broadcast> broadcasts = new ArrayList<>();
 
         if (receiverPermission == null) {
             // Without receiver permission, we only restrict by package name
-            if (app.wakeForDelivery) addPowerSaveTempWhitelistApp(packageName);
-            logd(this, "Deliver message to all receivers in package " + packageName);
+            if (McsTrace.isVerbose()) Log.d(TAG, "Deliver message to all receivers in package " + packageName);
             intent.setPackage(packageName);
-            sendOrderedBroadcast(intent, null);
+            broadcasts.add(new BroadcastScheduler.Broadcast(intent, null, app.wakeForDelivery));
         } else {
-            List<ResolveInfo> infos = getPackageManager().queryBroadcastReceivers(intent, PackageManager.GET_RESOLVED_FILTER);
-            if (infos == null || infos.isEmpty()) {
-                logd(this, "No target for message, wut?");
+            List<ResolveInfo> infos = packageInfoCache.getReceivers(packageName);
+            if (infos.isEmpty()) {
+                logd("No target for message, wut?");
             } else {
                 for (ResolveInfo resolveInfo : infos) {
                     Intent targetIntent = new Intent(intent);
                     targetIntent.setComponent(new ComponentName(resolveInfo.activityInfo.packageName, resolveInfo.activityInfo.name));
                     if (resolveInfo.activityInfo.packageName.equals(packageName)) {
-                        if (app.wakeForDelivery) addPowerSaveTempWhitelistApp(packageName);
                         // We don't need receiver permission for our own package
-                        logd(this, "Deliver message to own receiver " + resolveInfo);
-                        sendOrderedBroadcast(targetIntent, null);
+                        if (McsTrace.isVerbose()) Log.d(TAG, "Deliver message to own receiver " + resolveInfo);
+                        broadcasts.add(new BroadcastScheduler.Broadcast(targetIntent, null, app.wakeForDelivery));
                     } else if (resolveInfo.filter.hasCategory(packageName)) {
                         // Permission required
-                        logd(this, "Deliver message to third-party receiver (with permission check)" + resolveInfo);
-                        sendOrderedBroadcast(targetIntent, receiverPermission);
+                        if (McsTrace.isVerbose()) Log.d(TAG, "Deliver message to third-party receiver (with permission check)" + resolveInfo);
+                        broadcasts.add(new BroadcastScheduler.Broadcast(targetIntent, receiverPermission, false));
                     }
                 }
             }
         }
-    }
-
-    private void addPowerSaveTempWhitelistApp(String packageName) {
-        if (SDK_INT >= 31) {
-            try {
-                if (addToTemporaryAllowListMethod != null && powerExemptionManager != null) {
-                    logd(this, "Adding app " + packageName + " to the temp allowlist");
-                    addToTemporaryAllowListMethod.invoke(powerExemptionManager, packageName, 0, "GCM Push", 10000);
-                }
-            } catch (Exception e) {
-                Log.e(TAG, "Error adding app" + packageName + " to the temp allowlist.", e);
-            }
-        } else if (SDK_INT >= 23) {
-            try {
-                if (getUserIdMethod != null && addPowerSaveTempWhitelistAppMethod != null && deviceIdleController != null) {
-                    int userId = (int) getUserIdMethod.invoke(null, getPackageManager().getApplicationInfo(packageName, 0).uid);
-                    logd(this, "Adding app " + packageName + " for userId " + userId + " to the temp whitelist");
-                    addPowerSaveTempWhitelistAppMethod.invoke(deviceIdleController, packageName, 10000, userId, "GCM Push");
-                }
-            } catch (Exception e) {
-                Log.w(TAG, e);
-            }
+        if (!broadcasts.isEmpty()) {
+            broadcastScheduler.deliver(packageName, !BroadcastScheduler.isNormalPriority(msg), broadcasts);
         }
     }
 
@@ -675,27 +768,28 @@ public class McsService extends Service implements Handler.Callback {
                 return true;
             case MSG_INPUT_ERROR:
             case MSG_OUTPUT_ERROR:
-                logd(this, "I/O error: " + msg.obj);
+                logd("I/O error: %s", msg.obj);
                 if (msg.obj instanceof SocketException) {
                     SocketException e = (SocketException) msg.obj;
                     if ("Connection reset".equals(e.getMessage())) {
+                        heartbeatTimedOut = true;
                         GcmPrefs.get(this).learnTimeout(this, activeNetworkPref);
                     }
                 }
                 rootHandler.sendMessage(rootHandler.obtainMessage(MSG_TEARDOWN, msg.obj));
                 return true;
             case MSG_TEARDOWN:
-                logd(this, "Teardown initiated, reason: " + msg.obj);
+                logd("Teardown initiated, reason: %s", msg.obj);
                 handleTeardown(msg);
                 return true;
             case MSG_CONNECT:
-                logd(this, "Connect initiated, reason: " + msg.obj);
+                logd("Connect initiated, reason: %s", msg.obj);
                 if (!isConnected(this)) {
                     connect();
                 }
                 return true;
             case MSG_HEARTBEAT:
-                logd(this, "Heartbeat initiated, reason: " + msg.obj);
+                logd("Heartbeat initiated, reason: %s", msg.obj);
                 if (isConnected(this)) {
                     HeartbeatPing.Builder ping = new HeartbeatPing.Builder();
                     if (inputStream.newStreamIdAvailable()) {
@@ -705,33 +799,29 @@ public class McsService extends Service implements Handler.Callback {
                     lastHeartbeatPingElapsedRealtime = SystemClock.elapsedRealtime();
                     scheduleHeartbeat(this);
                 } else {
-                    logd(this, "Ignoring heartbeat, not connected!");
+                    logd("Ignoring heartbeat, not connected!");
                     scheduleReconnect(this);
                 }
                 return true;
             case MSG_ACK:
-                logd(this, "Ack initiated, reason: " + msg.obj);
+                logd("Ack initiated, reason: %s", msg.obj);
                 if (isConnected(this)) {
-                    IqStanza.Builder iq = new IqStanza.Builder()
-                            .type(IqStanza.IqType.SET)
-                            .id("")
-                            .extension(new Extension.Builder().id(13).data_(ByteString.EMPTY).build()) // StreamAck
-                            .status(0L);
-                    if (inputStream.newStreamIdAvailable()) {
-                        iq.last_stream_id_received(inputStream.getStreamId());
-                    }
-                    send(MCS_IQ_STANZA_TAG, iq.build());
+                    IqStanza ack = ackScheduler.buildAck(inputStream);
+                    if (ack != null) send(MCS_IQ_STANZA_TAG, ack);
                 } else {
-                    logd(this, "Ignoring ack, not connected!");
+                    logd("Ignoring ack, not connected!");
                 }
                 return true;
             case MSG_OUTPUT_READY:
-                logd(this, "Sending login request...");
+                logd("Sending login request...");
                 send(MCS_LOGIN_REQUEST_TAG, buildLoginRequest());
                 return true;
             case MSG_OUTPUT_DONE:
                 handleOutputDone(msg);
                 return true;
+            case MSG_OUTBOX_FLUSH:
+                flushOutbox();
+                return true;
         }
         Log.w(TAG, "Unknown message (" + msg.what + "): " + msg);
         return false;
@@ -742,6 +832,13 @@ public class McsService extends Service implements Handler.Callback {
             case MCS_HEARTBEAT_PING_TAG:
                 wakeLock.release();
                 break;
+            case MCS_IQ_STANZA_TAG:
+                ackScheduler.onWritten(msg.obj, msg.arg2);
+                break;
+            case MCS_DATA_MESSAGE_STANZA_TAG:
+                // Dispatched on the thread of the output stream that wrote the stanza, which may be a previous one
+                outbox.onSent(msg.obj, msg.arg2, Thread.currentThread());
+                break;
             default:
         }
     }
@@ -767,7 +864,14 @@ public class McsService extends Service implements Handler.Callback {
                 default:
                     Log.w(TAG, "Unknown message: " + message);
             }
-            resetCurrentDelay();
+            Integer lastStreamIdReceived = getLastStreamIdReceived(message);
+            if (lastStreamIdReceived != null) {
+                ackScheduler.onServerAcknowledged(lastStreamIdReceived);
+                for (UpstreamOutbox.Entry entry : outbox.onAcknowledged(lastStreamIdReceived)) {
+                    sendUpstreamResult(entry, null);
+                }
+            }
+            ReconnectScheduler.reset(activeNetworkPref);
             lastIncomingNetworkRealtime = SystemClock.elapsedRealtime();
         } catch (Exception e) {
             Log.w(TAG, "Exception when handling input: " + message, e);
@@ -785,7 +889,7 @@ public class McsService extends Service implements Handler.Callback {
     }
 
     private static void closeAll() {
-        logd(null, "Closing all sockets...");
+        logd("Closing all sockets...");
         tryClose(inputStream);
         tryClose(outputStream);
         if (sslSocket != null) {
@@ -801,11 +905,14 @@ public class McsService extends Service implements Handler.Callback {
             // This can get called multiple times from different places via MSG_TEARDOWN
             // this causes the reconnect delay to increase with each call to scheduleReconnect(),
             // increasing the time we are disconnected.
-            logd(this, "Was torn down already, not doing it again");
+            logd("Was torn down already, not doing it again");
             return;
         }
         wasTornDown = true;
         closeAll();
+        if (ackScheduler != null) ackScheduler.reset();
+        loggedIn = false;
+        outbox.onDisconnected();
 
         scheduleReconnect(this);
 
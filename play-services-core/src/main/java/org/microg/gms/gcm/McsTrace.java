@@ -0,0 +1,85 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.squareup.wire.Message;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * Trace of frames sent and received on the MCS connection.
+ * <p>
+ * Every frame is recorded into a fixed size ring buffer of primitive fields, which can be dumped on demand. Messages
+ * are only formatted and logged if verbose tracing is enabled, so that no strings are built for every frame in steady
+ * state.
+ */
+final class McsTrace {
+    private static final String TAG = "GmsGcmMcsTrace";
+    private static final int CAPACITY = 128;
+
+    private static volatile boolean verbose;
+
+    private static final long[] timestamps = new long[CAPACITY];
+    private static final boolean[] outgoing = new boolean[CAPACITY];
+    private static final int[] tags = new int[CAPACITY];
+    private static final int[] sizes = new int[CAPACITY];
+    private static final int[] streamIds = new int[CAPACITY];
+    private static long frameCount;
+
+    private McsTrace() {
+    }
+
+    /**
+     * Enables verbose tracing if requested or if debug logging is enabled for the trace tag.
+     */
+    static void setVerbose(boolean enabled) {
+        verbose = enabled || Log.isLoggable(TAG, Log.DEBUG);
+    }
+
+    static boolean isVerbose() {
+        return verbose;
+    }
+
+    /**
+     * Logs a connection event if verbose tracing is enabled, the message is only formatted in that case.
+     */
+    static void log(String tag, String format, Object... args) {
+        if (verbose) Log.d(tag, args.length == 0 ? format : String.format(Locale.ROOT, format, args));
+    }
+
+    static void incoming(int tag, int size, int streamId, Message message) {
+        record(false, tag, size, streamId);
+        if (verbose) Log.d(TAG, "Incoming message: " + message);
+    }
+
+    static void outgoing(int tag, int size, int streamId, Message message) {
+        record(true, tag, size, streamId);
+        if (verbose) Log.d(TAG, "Outgoing message: " + message);
+    }
+
+    private static synchronized void record(boolean isOutgoing, int tag, int size, int streamId) {
+        int index = (int) (frameCount++ % CAPACITY);
+        timestamps[index] = SystemClock.elapsedRealtime();
+        outgoing[index] = isOutgoing;
+        tags[index] = tag;
+        sizes[index] = size;
+        streamIds[index] = streamId;
+    }
+
+    static synchronized void dump(PrintWriter writer) {
+        long now = SystemClock.elapsedRealtime();
+        writer.println("MCS frames: " + frameCount + " total, last " + Math.min(frameCount, CAPACITY) + ":");
+        for (long i = Math.max(0, frameCount - CAPACITY); i < frameCount; i++) {
+            int index = (int) (i % CAPACITY);
+            writer.println("  -" + (now - timestamps[index]) + "ms " + (outgoing[index] ? "out" : "in ")
+                    + " tag=" + tags[index] + " size=" + sizes[index] + " stream_id=" + streamIds[index]);
+        }
+    }
+}
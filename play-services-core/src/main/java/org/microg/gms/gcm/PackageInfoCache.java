@@ -0,0 +1,151 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageManager;
+import android.content.pm.PermissionInfo;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+
+import org.microg.gms.common.PackageUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.microg.gms.gcm.GcmConstants.ACTION_C2DM_RECEIVE;
+
+/**
+ * Caches per-package information required on the push delivery and send paths, so that it does not need to be
+ * requested from the package manager for every message. Entries are dropped when the package is changed.
+ */
+class PackageInfoCache extends BroadcastReceiver {
+    private static final String TAG = "GmsGcmPackageCache";
+
+    private final Context context;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean registered;
+
+    private static class Entry {
+        private boolean signatureDigestResolved;
+        private String signatureDigest;
+        private boolean receiverPermissionResolved;
+        private String receiverPermission;
+        private List<ResolveInfo> receivers;
+    }
+
+    PackageInfoCache(Context context) {
+        this.context = context;
+    }
+
+    synchronized void register() {
+        if (registered) return;
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        context.registerReceiver(this, filter);
+        registered = true;
+    }
+
+    synchronized void unregister() {
+        if (!registered) return;
+        context.unregisterReceiver(this);
+        registered = false;
+        entries.clear();
+    }
+
+    synchronized String getSignatureDigest(String packageName) {
+        Entry entry = getEntry(packageName);
+        if (!entry.signatureDigestResolved) {
+            entry.signatureDigest = PackageUtils.firstSignatureDigest(context, packageName);
+            entry.signatureDigestResolved = true;
+        }
+        return entry.signatureDigest;
+    }
+
+    /**
+     * @return the name of the C2D_MESSAGE permission defined by the package or null if it does not define one.
+     */
+    synchronized String getReceiverPermission(String packageName) {
+        Entry entry = getEntry(packageName);
+        if (!entry.receiverPermissionResolved) {
+            entry.receiverPermission = resolveReceiverPermission(packageName);
+            entry.receiverPermissionResolved = true;
+        }
+        return entry.receiverPermission;
+    }
+
+    private String resolveReceiverPermission(String packageName) {
+        try {
+            String name = packageName + ".permission.C2D_MESSAGE";
+            PermissionInfo info = context.getPackageManager().getPermissionInfo(name, 0);
+            if (info.packageName.equals(packageName)) {
+                return name;
+            }
+        } catch (Exception ignored) {
+            // Keep null, no valid permission found
+        }
+        return null;
+    }
+
+    /**
+     * @return all receivers for push messages to the given package, that is receivers in the package itself and
+     * third-party receivers filtering for the package as category.
+     */
+    synchronized List<ResolveInfo> getReceivers(String packageName) {
+        Entry entry = getEntry(packageName);
+        if (entry.receivers == null) {
+            // Stopped packages are filtered again by the system when the broadcast is sent
+            Intent intent = new Intent(ACTION_C2DM_RECEIVE).addFlags(Intent.FLAG_INCLUDE_STOPPED_PACKAGES);
+            List<ResolveInfo> infos = context.getPackageManager().queryBroadcastReceivers(intent, PackageManager.GET_RESOLVED_FILTER);
+            List<ResolveInfo> receivers = new ArrayList<>();
+            if (infos != null) {
+                for (ResolveInfo info : infos) {
+                    if (info.activityInfo.packageName.equals(packageName) || (info.filter != null && info.filter.hasCategory(packageName))) {
+                        receivers.add(info);
+                    }
+                }
+            }
+            entry.receivers = Collections.unmodifiableList(receivers);
+        }
+        return entry.receivers;
+    }
+
+    synchronized void invalidate(String packageName) {
+        entries.remove(packageName);
+        // Any package may contribute receivers for other packages
+        for (Entry entry : entries.values()) {
+            entry.receivers = null;
+        }
+    }
+
+    private Entry getEntry(String packageName) {
+        Entry entry = entries.get(packageName);
+        if (entry == null) {
+            entry = new Entry();
+            // Only keep entries while we are notified about package changes
+            if (registered) entries.put(packageName, entry);
+        }
+        return entry;
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Uri data = intent.getData();
+        if (data == null) return;
+        McsTrace.log(TAG, "Package changed, invalidating: %s", data.getSchemeSpecificPart());
+        invalidate(data.getSchemeSpecificPart());
+    }
+}
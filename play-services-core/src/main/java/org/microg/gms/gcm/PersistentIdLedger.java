@@ -0,0 +1,171 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+/**
+ * Persistent ids of received messages that were not yet acknowledged to the server.
+ * <p>
+ * Ids are appended to a buffered file with one id per line, so noting a message is cheap, the buffer is written out
+ * on {@link #flush()}. The file is only rewritten when ids are removed after they were acknowledged. The number of ids
+ * is bounded, if the server does not acknowledge them in time, the oldest ids are dropped in chunks, which at worst
+ * results in a duplicate delivery.
+ */
+class PersistentIdLedger {
+    private static final String TAG = "GmsGcmPersistentIds";
+    private static final String FILE_NAME = "gcm_persistent_ids";
+    private static final int MAX_IDS = 500;
+    // Drop more than necessary once full, so that the file is not rewritten for every id appended afterwards
+    private static final int TRIMMED_IDS = MAX_IDS * 3 / 4;
+
+    private final AtomicFile file;
+    private final LinkedHashSet<String> ids = new LinkedHashSet<>();
+    private OutputStream appendStream;
+
+    PersistentIdLedger(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        load();
+        importLegacyIds(context);
+    }
+
+    /**
+     * Reads the stored ids. This also restores the backup of an interrupted rewrite, so that ids are only ever
+     * appended to a complete file.
+     */
+    private void load() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(file.openRead(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) ids.add(line);
+            }
+        } catch (IOException ignored) {
+            // No ids stored yet
+        }
+        trim();
+    }
+
+    /**
+     * Ids used to be stored in the GCM settings, move them over once.
+     */
+    private void importLegacyIds(Context context) {
+        try {
+            List<String> legacyIds = GcmPrefs.get(context).getLastPersistedIds();
+            if (legacyIds.isEmpty()) return;
+            for (String id : legacyIds) {
+                add(id);
+            }
+            GcmPrefs.clearLastPersistedId(context);
+        } catch (Exception e) {
+            Log.w(TAG, "Failed to import persistent ids from settings", e);
+        }
+    }
+
+    synchronized void add(String id) {
+        if (id.isEmpty() || !ids.add(id)) return;
+        if (trim()) {
+            rewrite();
+            return;
+        }
+        try {
+            if (appendStream == null) appendStream = new BufferedOutputStream(new FileOutputStream(file.getBaseFile(), true));
+            appendStream.write((id + "\n").getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store persistent id", e);
+        }
+    }
+
+    synchronized void remove(Collection<String> acknowledged) {
+        if (ids.removeAll(acknowledged)) rewrite();
+    }
+
+    synchronized void clear() {
+        if (ids.isEmpty()) return;
+        ids.clear();
+        rewrite();
+    }
+
+    synchronized List<String> getIds() {
+        return new ArrayList<>(ids);
+    }
+
+    synchronized int size() {
+        return ids.size();
+    }
+
+    synchronized boolean isEmpty() {
+        return ids.isEmpty();
+    }
+
+    /**
+     * Writes appended ids to storage.
+     */
+    synchronized void flush() {
+        if (appendStream == null) return;
+        try {
+            appendStream.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store persistent ids", e);
+        }
+    }
+
+    synchronized void close() {
+        closeAppendStream();
+    }
+
+    private boolean trim() {
+        if (ids.size() <= MAX_IDS) return false;
+        Iterator<String> iterator = ids.iterator();
+        while (ids.size() > TRIMMED_IDS && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+        return true;
+    }
+
+    private void rewrite() {
+        closeAppendStream();
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            StringBuilder sb = new StringBuilder();
+            for (String id : ids) {
+                sb.append(id).append('\n');
+            }
+            stream.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store persistent ids", e);
+            if (stream != null) file.failWrite(stream);
+        }
+    }
+
+    private void closeAppendStream() {
+        if (appendStream != null) {
+            try {
+                appendStream.close();
+            } catch (IOException ignored) {
+            }
+            appendStream = null;
+        }
+    }
+}
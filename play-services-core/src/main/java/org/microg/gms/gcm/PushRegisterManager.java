@@ -18,6 +18,7 @@ package org.microg.gms.gcm;
 
 import android.content.Context;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 
 import org.microg.gms.checkin.LastCheckinInfo;
@@ -26,6 +27,11 @@ import org.microg.gms.common.PackageUtils;
 import org.microg.gms.common.Utils;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import static org.microg.gms.gcm.GcmConstants.ERROR_SERVICE_NOT_AVAILABLE;
 import static org.microg.gms.gcm.GcmConstants.EXTRA_ERROR;
@@ -35,8 +41,37 @@ import static org.microg.gms.gcm.GcmConstants.EXTRA_UNREGISTERED;
 
 public class PushRegisterManager {
     private static final String TAG = "GmsGcmRegisterMgr";
+    private static final long RECENT_TOKEN_TTL_MS = 60000;
+
+    // Requests waiting for the response of an identical request, by coalescing key
+    private static final Map<String, List<PendingResult>> inFlight = new HashMap<>();
+    // Results of recent successful registrations, by app and coalescing key
+    private static final Map<String, Map<String, RecentToken>> recentTokens = new HashMap<>();
+
+    private static class PendingResult {
+        private final String requestId;
+        private final BundleCallback callback;
+
+        private PendingResult(String requestId, BundleCallback callback) {
+            this.requestId = requestId;
+            this.callback = callback;
+        }
+    }
+
+    private static class RecentToken {
+        private final Bundle result;
+        private final long expiresAt;
+
+        private RecentToken(Bundle result, long expiresAt) {
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+    }
 
     public static RegisterResponse unregister(Context context, String packageName, String pkgSignature, String sender, String info) {
+        synchronized (inFlight) {
+            forgetRecentTokens(packageName);
+        }
         GcmDatabase database = new GcmDatabase(context);
         RegisterResponse response = new RegisterResponse();
         try {
@@ -103,20 +138,101 @@ public class PushRegisterManager {
             }
         }
 
+        String key = request.getCoalescingKey();
+        Bundle recentResult = null;
+        synchronized (inFlight) {
+            if (request.delete) {
+                forgetRecentTokens(request.app);
+            } else {
+                Map<String, RecentToken> appTokens = recentTokens.get(request.app);
+                RecentToken recentToken = appTokens == null ? null : appTokens.get(key);
+                if (recentToken != null && recentToken.expiresAt > SystemClock.elapsedRealtime()) {
+                    // The registration might have been removed since, possibly from another process
+                    GcmDatabase.Registration registration = database.getRegistration(request.app, request.appSignature);
+                    if (registration != null && recentToken.result.getString(EXTRA_REGISTRATION_ID).equals(registration.registerId)) {
+                        recentResult = recentToken.result;
+                    } else {
+                        appTokens.remove(key);
+                    }
+                }
+            }
+            if (recentResult == null) {
+                List<PendingResult> pending = inFlight.get(key);
+                if (pending != null) {
+                    Log.d(TAG, "Joining registration request in flight for " + request.app);
+                    pending.add(new PendingResult(requestId, callback));
+                    return;
+                }
+                pending = new ArrayList<>();
+                pending.add(new PendingResult(requestId, callback));
+                inFlight.put(key, pending);
+            }
+        }
+        if (recentResult != null) {
+            Log.d(TAG, "Using recent registration result for " + request.app);
+            callback.onResult(withRequestId(recentResult, requestId));
+            return;
+        }
+
         request.getResponseAsync(new HttpFormClient.Callback<RegisterResponse>() {
             @Override
             public void onResponse(RegisterResponse response) {
-                callback.onResult(handleResponse(database, request, response, requestId));
+                completeRequests(key, request, handleResponse(database, request, response, null));
             }
 
             @Override
             public void onException(Exception e) {
                 Log.w(TAG, e);
-                callback.onResult(handleResponse(database, request, e, requestId));
+                completeRequests(key, request, handleResponse(database, request, e, null));
             }
         });
     }
 
+    /**
+     * Passes the result to all requests waiting for it and remembers it, if it is a new token.
+     */
+    private static void completeRequests(String key, RegisterRequest request, Bundle result) {
+        List<PendingResult> pending;
+        synchronized (inFlight) {
+            pending = inFlight.remove(key);
+            if (request.delete) {
+                forgetRecentTokens(request.app);
+            } else if (result.containsKey(EXTRA_REGISTRATION_ID)) {
+                long now = SystemClock.elapsedRealtime();
+                for (Iterator<Map<String, RecentToken>> apps = recentTokens.values().iterator(); apps.hasNext(); ) {
+                    Map<String, RecentToken> appTokens = apps.next();
+                    for (Iterator<RecentToken> iterator = appTokens.values().iterator(); iterator.hasNext(); ) {
+                        if (iterator.next().expiresAt <= now) iterator.remove();
+                    }
+                    if (appTokens.isEmpty()) apps.remove();
+                }
+                Map<String, RecentToken> appTokens = recentTokens.get(request.app);
+                if (appTokens == null) {
+                    appTokens = new HashMap<>();
+                    recentTokens.put(request.app, appTokens);
+                }
+                appTokens.put(key, new RecentToken(result, now + RECENT_TOKEN_TTL_MS));
+            }
+        }
+        if (pending == null) return;
+        for (PendingResult pendingResult : pending) {
+            pendingResult.callback.onResult(withRequestId(result, pendingResult.requestId));
+        }
+    }
+
+    private static void forgetRecentTokens(String packageName) {
+        recentTokens.remove(packageName);
+    }
+
+    private static Bundle withRequestId(Bundle result, String requestId) {
+        Bundle bundle = new Bundle(result);
+        for (String key : new String[]{EXTRA_ERROR, EXTRA_REGISTRATION_ID, EXTRA_UNREGISTERED}) {
+            String value = result.getString(key);
+            if (value != null) bundle.putString(key, attachRequestId(value, requestId));
+        }
+        return bundle;
+    }
+
 
 
     private static Bundle handleResponse(GcmDatabase database, RegisterRequest request, RegisterResponse response, String requestId) {
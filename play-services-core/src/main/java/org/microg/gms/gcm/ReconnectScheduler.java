@@ -0,0 +1,111 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static android.os.Build.VERSION.SDK_INT;
+import static org.microg.gms.gcm.McsConstants.ACTION_RECONNECT;
+
+/**
+ * Computes reconnect delays and triggers a reconnect as soon as a new validated network becomes the default.
+ * <p>
+ * Delays grow exponentially with each failed attempt, tracked separately for each network type, and are jittered so
+ * that clients do not retry in lockstep. The backoff for a network type is reset when a validated network of that type
+ * becomes available or input was received on a connection over it.
+ */
+class ReconnectScheduler extends ConnectivityManager.NetworkCallback {
+    private static final String TAG = "GmsGcmReconnect";
+    private static final long BASE_DELAY_MS = 5000;
+    private static final long MAX_DELAY_MS = 10 * 60 * 1000;
+
+    private static final Map<String, Integer> attempts = new HashMap<>();
+    private static final Random random = new Random();
+    private static ReconnectScheduler instance;
+
+    private final Context context;
+    private Network validatedNetwork;
+
+    private ReconnectScheduler(Context context) {
+        this.context = context;
+    }
+
+    static synchronized void register(Context context) {
+        if (instance != null) return;
+        ConnectivityManager cm = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        instance = new ReconnectScheduler(context.getApplicationContext());
+        // The network we start on does not need to trigger a reconnect
+        instance.validatedNetwork = cm.getActiveNetwork();
+        try {
+            cm.registerDefaultNetworkCallback(instance);
+        } catch (Exception e) {
+            Log.w(TAG, e);
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the delay for the next reconnect attempt on the given network type
+     */
+    static synchronized long getNextDelay(String networkPref) {
+        Integer count = attempts.get(networkPref);
+        int attempt = count == null ? 0 : count;
+        long delay = Math.min(MAX_DELAY_MS, BASE_DELAY_MS << Math.min(attempt, 16));
+        attempts.put(networkPref, attempt + 1);
+        // Equal jitter: at least half of the delay, the remainder random
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    static synchronized void reset(String networkPref) {
+        attempts.remove(networkPref);
+    }
+
+    @Override
+    public void onCapabilitiesChanged(Network network, NetworkCapabilities capabilities) {
+        if (!capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)) return;
+        synchronized (this) {
+            if (network.equals(validatedNetwork)) return;
+            validatedNetwork = network;
+        }
+        String networkPref = getNetworkPref(capabilities);
+        McsTrace.log(TAG, "Validated network available (%s), reconnecting now", networkPref);
+        reset(networkPref);
+        // Queued before the reconnect, so the stale connection is torn down first
+        McsService.onDefaultNetworkChanged(network);
+        Intent intent = new Intent(ACTION_RECONNECT, null, context, TriggerReceiver.class);
+        // Drop a pending delayed reconnect, this one supersedes it
+        PendingIntent pendingReconnect = PendingIntent.getBroadcast(context, 1, intent, PendingIntent.FLAG_NO_CREATE | PendingIntent.FLAG_IMMUTABLE);
+        if (pendingReconnect != null) {
+            ((AlarmManager) context.getSystemService(Context.ALARM_SERVICE)).cancel(pendingReconnect);
+        }
+        context.sendBroadcast(intent);
+    }
+
+    @Override
+    public synchronized void onLost(Network network) {
+        if (network.equals(validatedNetwork)) validatedNetwork = null;
+    }
+
+    private static String getNetworkPref(NetworkCapabilities capabilities) {
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) return GcmPrefs.PREF_NETWORK_WIFI;
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            if (SDK_INT >= 28 && !capabilities.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING)) return GcmPrefs.PREF_NETWORK_ROAMING;
+            return GcmPrefs.PREF_NETWORK_MOBILE;
+        }
+        return GcmPrefs.PREF_NETWORK_OTHER;
+    }
+}
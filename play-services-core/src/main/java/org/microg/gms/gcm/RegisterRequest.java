@@ -28,6 +28,7 @@ import org.microg.gms.profile.ProfileManager;
 import java.io.IOException;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import static org.microg.gms.common.HttpFormClient.RequestContent;
 import static org.microg.gms.common.HttpFormClient.RequestContentDynamic;
@@ -142,6 +143,15 @@ public class RegisterRequest extends HttpFormClient.Request {
         return extraParams.containsKey(extraParamKey(key));
     }
 
+    /**
+     * @return a key that is equal for requests expecting the same response, ignoring their request id.
+     */
+    public String getCoalescingKey() {
+        Map<String, String> params = new TreeMap<>(extraParams);
+        params.remove(extraParamKey(GcmConstants.EXTRA_KID));
+        return androidId + "|" + app + "|" + appSignature + "|" + sender + "|" + delete + "|" + params;
+    }
+
     private static String extraParamKey(String key) {
         return "X-" + key;
     }
@@ -62,10 +62,6 @@ public class TriggerReceiver extends WakefulBroadcastReceiver {
                 return;
             }
 
-            if (ConnectivityManager.CONNECTIVITY_ACTION.equals(intent.getAction())) {
-                McsService.resetCurrentDelay();
-            }
-
             if (LastCheckinInfo.read(context).getAndroidId() == 0) {
                 Log.d(TAG, "Ignoring " + intent + ": need to checkin first.");
                 if (CheckinPreferences.isEnabled(context)) {
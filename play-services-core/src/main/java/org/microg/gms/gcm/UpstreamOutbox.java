@@ -0,0 +1,262 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Upstream messages that were not yet acknowledged by the server.
+ * <p>
+ * Messages are kept across reconnects and process restarts until the server acknowledged them or their time to live
+ * expired. A message is acknowledged once the server reports a last received stream id at or after the stream id the
+ * message was sent with. Messages sent on a connection that was lost before they were acknowledged are sent again.
+ * <p>
+ * Changes are written to storage on a background thread, changes made within {@link #STORE_DELAY_MS} are written
+ * together.
+ */
+class UpstreamOutbox {
+    private static final String TAG = "GmsGcmOutbox";
+    private static final String FILE_NAME = "gcm_outbox";
+    private static final int FILE_VERSION = 1;
+    private static final int MAX_MESSAGES = 100;
+    private static final long STORE_DELAY_MS = 500;
+    private static Handler writerHandler;
+
+    private final AtomicFile file;
+    private final List<Entry> entries = new ArrayList<>();
+    private final Runnable storeRunnable = this::store;
+    private boolean storeScheduled;
+
+    static class Entry {
+        final String packageName;
+        final String messageId;
+        final long sendAfter;
+        final long expiresAt;
+        final DataMessageStanza stanza;
+        /**
+         * Stream id the message was sent with on the current connection, 0 while being written, -1 if not sent yet.
+         */
+        private int streamId = -1;
+        // Connection the message was taken for, it's only sent on that one
+        private Object connection;
+
+        /**
+         * @param messageId id of the message as set by the app, used to report the result back to it
+         * @param sendAfter time in milliseconds since epoch before which the message should not be sent
+         * @param expiresAt time in milliseconds since epoch after which the message should no longer be sent
+         */
+        Entry(String packageName, String messageId, long sendAfter, long expiresAt, DataMessageStanza stanza) {
+            this.packageName = packageName;
+            this.messageId = messageId;
+            this.sendAfter = sendAfter;
+            this.expiresAt = expiresAt;
+            this.stanza = stanza;
+        }
+    }
+
+    UpstreamOutbox(Context context) {
+        file = new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+        load();
+    }
+
+    private static synchronized Handler getWriterHandler() {
+        if (writerHandler == null) {
+            HandlerThread thread = new HandlerThread("GcmOutboxWriter");
+            thread.start();
+            writerHandler = new Handler(thread.getLooper());
+        }
+        return writerHandler;
+    }
+
+    private void load() {
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            if (in.readInt() != FILE_VERSION) return;
+            while (true) {
+                String packageName;
+                try {
+                    packageName = in.readUTF();
+                } catch (EOFException e) {
+                    break;
+                }
+                String messageId = in.readBoolean() ? in.readUTF() : null;
+                long sendAfter = in.readLong();
+                long expiresAt = in.readLong();
+                byte[] data = new byte[in.readInt()];
+                in.readFully(data);
+                entries.add(new Entry(packageName, messageId, sendAfter, expiresAt, DataMessageStanza.ADAPTER.decode(data)));
+            }
+        } catch (IOException ignored) {
+            // Nothing stored or stored data unusable
+        }
+    }
+
+    private synchronized void scheduleStore() {
+        if (storeScheduled) return;
+        getWriterHandler().postDelayed(storeRunnable, STORE_DELAY_MS);
+        storeScheduled = true;
+    }
+
+    /**
+     * Writes pending changes right away, e.g. before the process might be killed.
+     */
+    void flush() {
+        getWriterHandler().removeCallbacks(storeRunnable);
+        store();
+    }
+
+    private void store() {
+        // Writes are serialized, so that an older state is never written after a newer one
+        synchronized (file) {
+            List<Entry> snapshot;
+            synchronized (this) {
+                if (!storeScheduled) return;
+                storeScheduled = false;
+                snapshot = new ArrayList<>(entries);
+            }
+            write(snapshot);
+        }
+    }
+
+    private void write(List<Entry> entries) {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(FILE_VERSION);
+            for (Entry entry : entries) {
+                out.writeUTF(entry.packageName);
+                out.writeBoolean(entry.messageId != null);
+                if (entry.messageId != null) out.writeUTF(entry.messageId);
+                out.writeLong(entry.sendAfter);
+                out.writeLong(entry.expiresAt);
+                byte[] data = DataMessageStanza.ADAPTER.encode(entry.stanza);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to store outbox", e);
+            if (stream != null) file.failWrite(stream);
+        }
+    }
+
+    /**
+     * @return false if the outbox is full and the message was not added.
+     */
+    synchronized boolean add(Entry entry) {
+        if (entries.size() >= MAX_MESSAGES) return false;
+        entries.add(entry);
+        scheduleStore();
+        return true;
+    }
+
+    /**
+     * Messages that expired while connected are still sent, they only expired because sending takes a moment, which
+     * is always the case for messages with a time to live of 0. Messages that expired before are not.
+     *
+     * @param connectedSince time in milliseconds since epoch since which messages can be sent
+     * @param connection      the connection messages are sent on, see {@link #onSent(Object, int, Object)}
+     * @return messages due to be sent now, they are marked as being sent.
+     */
+    synchronized List<Entry> takeDue(long now, long connectedSince, Object connection) {
+        List<Entry> due = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (entry.streamId < 0 && entry.sendAfter <= now && entry.expiresAt >= Math.min(now, connectedSince)) {
+                entry.streamId = 0;
+                entry.connection = connection;
+                due.add(entry);
+            }
+        }
+        return due;
+    }
+
+    /**
+     * @return messages that were not sent before their time to live expired, they are removed from the outbox.
+     */
+    synchronized List<Entry> removeExpired(long now) {
+        List<Entry> expired = new ArrayList<>();
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.streamId < 0 && entry.expiresAt < now) {
+                iterator.remove();
+                expired.add(entry);
+            }
+        }
+        if (!expired.isEmpty()) scheduleStore();
+        return expired;
+    }
+
+    /**
+     * @return time in milliseconds since epoch at which the next message becomes due or expires, or -1 if none.
+     */
+    synchronized long getNextDeadline() {
+        long next = -1;
+        for (Entry entry : entries) {
+            if (entry.streamId >= 0) continue;
+            long deadline = entry.sendAfter > System.currentTimeMillis() ? entry.sendAfter : entry.expiresAt;
+            if (next < 0 || deadline < next) next = deadline;
+        }
+        return next;
+    }
+
+    /**
+     * Notes that the given stanza was written with the given stream id. Ignored if it was written on another
+     * connection than the one it was last taken for, e.g. when the write completes after a reconnect.
+     *
+     * @param connection the connection the stanza was written on
+     */
+    synchronized void onSent(Object stanza, int streamId, Object connection) {
+        for (Entry entry : entries) {
+            if (entry.stanza == stanza && entry.streamId == 0 && entry.connection == connection) {
+                entry.streamId = streamId;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return messages acknowledged by the server, they are removed from the outbox.
+     */
+    synchronized List<Entry> onAcknowledged(int lastStreamIdReceived) {
+        List<Entry> acknowledged = new ArrayList<>();
+        for (Iterator<Entry> iterator = entries.iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.streamId > 0 && entry.streamId <= lastStreamIdReceived) {
+                iterator.remove();
+                acknowledged.add(entry);
+            }
+        }
+        if (!acknowledged.isEmpty()) scheduleStore();
+        return acknowledged;
+    }
+
+    /**
+     * Marks all messages as not sent, as stream ids are only valid for a single connection.
+     */
+    synchronized void onDisconnected() {
+        for (Entry entry : entries) {
+            entry.streamId = -1;
+            entry.connection = null;
+        }
+    }
+}
@@ -8,28 +8,28 @@ object AuthPrefs {
 
     @JvmStatic
     fun isTrustGooglePermitted(context: Context): Boolean {
-        return SettingsContract.getSettings(context, Auth.getContentUri(context), arrayOf(Auth.TRUST_GOOGLE)) { c ->
+        return SettingsContract.getCachedSettings(context, Auth.getContentUri(context), arrayOf(Auth.TRUST_GOOGLE), "isTrustGooglePermitted") { c ->
             c.getInt(0) != 0
         }
     }
 
     @JvmStatic
     fun isAuthVisible(context: Context): Boolean {
-        return SettingsContract.getSettings(context, Auth.getContentUri(context), arrayOf(Auth.VISIBLE)) { c ->
+        return SettingsContract.getCachedSettings(context, Auth.getContentUri(context), arrayOf(Auth.VISIBLE), "isAuthVisible") { c ->
             c.getInt(0) != 0
         }
     }
 
     @JvmStatic
     fun shouldIncludeAndroidId(context: Context): Boolean {
-        return SettingsContract.getSettings(context, Auth.getContentUri(context), arrayOf(Auth.INCLUDE_ANDROID_ID)) { c ->
+        return SettingsContract.getCachedSettings(context, Auth.getContentUri(context), arrayOf(Auth.INCLUDE_ANDROID_ID), "shouldIncludeAndroidId") { c ->
             c.getInt(0) != 0
         }
     }
 
     @JvmStatic
     fun shouldStripDeviceName(context: Context): Boolean {
-        return SettingsContract.getSettings(context, Auth.getContentUri(context), arrayOf(Auth.STRIP_DEVICE_NAME)) { c ->
+        return SettingsContract.getCachedSettings(context, Auth.getContentUri(context), arrayOf(Auth.STRIP_DEVICE_NAME), "shouldStripDeviceName") { c ->
             c.getInt(0) != 0
         }
     }
@@ -48,4 +48,17 @@ object CheckinPreferences {
             }
         }
     }
+
+    /**
+     * Changes the spoofing state and drops the last check-in, which was made with the previous state, in one write.
+     */
+    @JvmStatic
+    fun setSpoofingEnabledAndClearCheckin(context: Context, enabled: Boolean) {
+        SettingsContract.setSettingsBatch(context) {
+            put(CheckIn.getContentUri(context)) {
+                LastCheckinInfo.putCleared(this)
+                put(CheckIn.BRAND_SPOOF, enabled)
+            }
+        }
+    }
 }
@@ -15,6 +15,7 @@
  */
 package org.microg.gms.checkin
 
+import android.content.ContentValues
 import android.content.Context
 import org.microg.gms.settings.SettingsContract
 import org.microg.gms.settings.SettingsContract.CheckIn
@@ -48,7 +49,7 @@ data class LastCheckinInfo(
                 CheckIn.VERSION_INFO,
                 CheckIn.DEVICE_DATA_VERSION_INFO,
             )
-            return SettingsContract.getSettings(context, CheckIn.getContentUri(context), projection) { c ->
+            return SettingsContract.getCachedSettings(context, CheckIn.getContentUri(context), projection, "LastCheckinInfo") { c ->
                 LastCheckinInfo(
                     androidId = c.getLong(0),
                     digest = c.getString(1),
@@ -62,12 +63,16 @@ data class LastCheckinInfo(
 
         @JvmStatic
         fun clear(context: Context) = SettingsContract.setSettings(context, CheckIn.getContentUri(context)) {
-            put(CheckIn.ANDROID_ID, 0L)
-            put(CheckIn.DIGEST, CheckIn.INITIAL_DIGEST)
-            put(CheckIn.LAST_CHECK_IN, 0L)
-            put(CheckIn.SECURITY_TOKEN, 0L)
-            put(CheckIn.VERSION_INFO, "")
-            put(CheckIn.DEVICE_DATA_VERSION_INFO, "")
+            putCleared(this)
+        }
+
+        internal fun putCleared(values: ContentValues) {
+            values.put(CheckIn.ANDROID_ID, 0L)
+            values.put(CheckIn.DIGEST, CheckIn.INITIAL_DIGEST)
+            values.put(CheckIn.LAST_CHECK_IN, 0L)
+            values.put(CheckIn.SECURITY_TOKEN, 0L)
+            values.put(CheckIn.VERSION_INFO, "")
+            values.put(CheckIn.DEVICE_DATA_VERSION_INFO, "")
         }
     }
 
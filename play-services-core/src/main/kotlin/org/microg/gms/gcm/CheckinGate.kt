@@ -0,0 +1,97 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm
+
+import android.content.Context
+import android.content.Intent
+import android.os.Bundle
+import android.os.ResultReceiver
+import android.os.SystemClock
+import kotlinx.coroutines.CancellableContinuation
+import kotlinx.coroutines.suspendCancellableCoroutine
+import kotlinx.coroutines.withTimeout
+import org.microg.gms.checkin.CheckinPreferences
+import org.microg.gms.checkin.CheckinService
+import org.microg.gms.checkin.LastCheckinInfo
+import org.microg.gms.common.ForegroundServiceContext
+import org.microg.gms.settings.SettingsContract
+import org.microg.gms.settings.SettingsContract.CheckIn
+import kotlin.coroutines.resume
+import kotlin.coroutines.resumeWithException
+
+private const val TAG = "GmsGcmCheckinGate"
+
+/**
+ * Provides check-in credentials to registrations.
+ *
+ * Registrations proceed right away if credentials of an earlier check-in exist, even if that check-in should be
+ * refreshed. The refresh then runs in the background. Only without credentials, registrations wait for a check-in and
+ * are resumed once it reports its result.
+ */
+internal object CheckinGate {
+    // Only reached if the check-in never reports back, e.g. because its process died
+    private const val CHECKIN_TIMEOUT_MS = 60000L
+
+    private val waiting = mutableListOf<CancellableContinuation<LastCheckinInfo>>()
+    private var checkinStarted = -1L
+
+    suspend fun await(context: Context): LastCheckinInfo {
+        if (!CheckinPreferences.isEnabled(context)) throw RuntimeException("Checkin disabled")
+        val info = LastCheckinInfo.read(context)
+        if (info.hasCredentials) {
+            if (info.lastCheckin < System.currentTimeMillis() - CheckinService.MAX_VALID_CHECKIN_AGE) {
+                McsTrace.log(TAG, "Check-in outdated, refreshing in background")
+                startCheckin(context)
+            }
+            return info
+        }
+        McsTrace.log(TAG, "No check-in credentials, waiting for check-in")
+        return withTimeout(CHECKIN_TIMEOUT_MS) {
+            suspendCancellableCoroutine { continuation ->
+                synchronized(this@CheckinGate) { waiting.add(continuation) }
+                continuation.invokeOnCancellation { synchronized(this@CheckinGate) { waiting.remove(continuation) } }
+                startCheckin(context)
+            }
+        }
+    }
+
+    private val LastCheckinInfo.hasCredentials: Boolean
+        get() = androidId != 0L && securityToken != 0L
+
+    private fun startCheckin(context: Context) {
+        synchronized(this) {
+            val now = SystemClock.elapsedRealtime()
+            if (checkinStarted >= 0 && checkinStarted > now - CHECKIN_TIMEOUT_MS) return
+            checkinStarted = now
+        }
+        val appContext = context.applicationContext
+        val intent = Intent(context, CheckinService::class.java)
+        intent.putExtra(CheckinService.EXTRA_RESULT_RECEIVER, object : ResultReceiver(null) {
+            override fun onReceiveResult(resultCode: Int, resultData: Bundle?) {
+                onCheckinDone(appContext)
+            }
+        })
+        ForegroundServiceContext(context).startService(intent)
+    }
+
+    private fun onCheckinDone(context: Context) {
+        val continuations = synchronized(this) {
+            checkinStarted = -1L
+            waiting.toList().also { waiting.clear() }
+        }
+        if (continuations.isEmpty()) return
+        // The check-in was written by another process, the change notification might not have arrived yet
+        SettingsContract.invalidateCache(CheckIn.getContentUri(context))
+        val info = LastCheckinInfo.read(context)
+        for (continuation in continuations) {
+            if (info.hasCredentials) {
+                continuation.resume(info)
+            } else {
+                continuation.resumeWithException(RuntimeException("No checkin available"))
+            }
+        }
+    }
+}
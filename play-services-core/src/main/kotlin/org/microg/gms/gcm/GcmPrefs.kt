@@ -1,5 +1,6 @@
 package org.microg.gms.gcm
 
+import android.content.ContentValues
 import android.content.Context
 import android.content.Intent
 import android.net.ConnectivityManager
@@ -29,7 +30,7 @@ data class GcmPrefs(
     val isEnabled: Boolean get() = gcmEnabled
 
     val lastPersistedIds: List<String>
-        get() = if (lastPersistedId.isNullOrEmpty()) emptyList() else lastPersistedId.split("\\|")
+        get() = if (lastPersistedId.isNullOrEmpty()) emptyList() else lastPersistedId.split('|')
 
     companion object {
         const val PREF_CONFIRM_NEW_APPS = Gcm.CONFIRM_NEW_APPS
@@ -40,10 +41,15 @@ data class GcmPrefs(
 
         private const val MIN_INTERVAL = 5 * 60 * 1000 // 5 minutes
         private const val MAX_INTERVAL = 15 * 60 * 1000 // 15 minutes
+        private const val MAX_SERVER_INTERVAL = 28 * 60 * 1000 // 28 minutes
 
+        /**
+         * Returns the current settings. The result is kept in memory until the settings change, so that frequent
+         * callers do not need to query the provider every time.
+         */
         @JvmStatic
         fun get(context: Context): GcmPrefs {
-            return SettingsContract.getSettings(context, Gcm.getContentUri(context), Gcm.PROJECTION) { c ->
+            return SettingsContract.getCachedSettings(context, Gcm.getContentUri(context), Gcm.PROJECTION, "GcmPrefs") { c ->
                 GcmPrefs(
                     isGcmLogEnabled = c.getInt(0) != 0,
                     lastPersistedId = c.getString(1),
@@ -60,9 +66,11 @@ data class GcmPrefs(
             }
         }
 
+        private fun setGcmSettings(context: Context, v: ContentValues.() -> Unit) = setSettings(context, Gcm.getContentUri(context), v)
+
         fun write(context: Context, config: ServiceConfiguration) {
             val gcmPrefs = get(context)
-            setSettings(context, Gcm.getContentUri(context)) {
+            setGcmSettings(context) {
                 put(Gcm.ENABLE_GCM, config.enabled)
                 put(Gcm.CONFIRM_NEW_APPS, config.confirmNewApps)
                 put(Gcm.NETWORK_MOBILE, config.mobile)
@@ -75,7 +83,7 @@ data class GcmPrefs(
 
         fun setEnabled(context: Context, enabled: Boolean) {
             val prefs = get(context)
-            setSettings(context, Gcm.getContentUri(context)) {
+            setGcmSettings(context) {
                 put(Gcm.ENABLE_GCM, enabled)
             }
             prefs.setEnabled(context, enabled)
@@ -83,7 +91,7 @@ data class GcmPrefs(
 
         @JvmStatic
         fun clearLastPersistedId(context: Context) {
-            setSettings(context, Gcm.getContentUri(context)) {
+            setGcmSettings(context) {
                 put(Gcm.LAST_PERSISTENT_ID, "")
             }
         }
@@ -129,21 +137,27 @@ data class GcmPrefs(
         }
     }
 
+    /**
+     * Like [getHeartbeatMsFor], but prefers the interval negotiated with the server over the learnt interval, unless
+     * an interval is configured for the network.
+     */
+    fun getHeartbeatMsFor(pref: String, serverIntervalMs: Int): Int {
+        val configured = when (pref) {
+            PREF_NETWORK_ROAMING -> networkRoaming
+            PREF_NETWORK_MOBILE -> networkMobile
+            PREF_NETWORK_WIFI -> networkWifi
+            else -> networkOther
+        }
+        if (configured != 0 || serverIntervalMs <= 0) return getHeartbeatMsFor(pref)
+        return max(MIN_INTERVAL, min(serverIntervalMs, MAX_SERVER_INTERVAL))
+    }
+
     fun learnTimeout(context: Context, pref: String) {
         Log.d("GmsGcmPrefs", "learnTimeout: $pref")
         when (pref) {
-            PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> setSettings(context, Gcm.getContentUri(context)) {
-                val newInterval = (learntMobileInterval * 0.95).toInt()
-                put(Gcm.LEARNT_MOBILE, max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL)))
-            }
-            PREF_NETWORK_WIFI -> setSettings(context, Gcm.getContentUri(context)) {
-                val newInterval = (learntWifiInterval * 0.95).toInt()
-                put(Gcm.LEARNT_WIFI, max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL)))
-            }
-            else -> setSettings(context, Gcm.getContentUri(context)) {
-                val newInterval = (learntOtherInterval * 0.95).toInt()
-                put(Gcm.LEARNT_OTHER, max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL)))
-            }
+            PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> setLearntInterval(context, Gcm.LEARNT_MOBILE, learntMobileInterval, (learntMobileInterval * 0.95).toInt())
+            PREF_NETWORK_WIFI -> setLearntInterval(context, Gcm.LEARNT_WIFI, learntWifiInterval, (learntWifiInterval * 0.95).toInt())
+            else -> setLearntInterval(context, Gcm.LEARNT_OTHER, learntOtherInterval, (learntOtherInterval * 0.95).toInt())
         }
     }
 
@@ -152,41 +166,37 @@ data class GcmPrefs(
         when (pref) {
             PREF_NETWORK_MOBILE, PREF_NETWORK_ROAMING -> {
                 if (time > learntMobileInterval / 4 * 3) {
-                    val newInterval = (learntMobileInterval * 1.02).toInt()
-                    setSettings(context, Gcm.getContentUri(context)) {
-                        put(Gcm.LEARNT_MOBILE, max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL)))
-                    }
+                    setLearntInterval(context, Gcm.LEARNT_MOBILE, learntMobileInterval, (learntMobileInterval * 1.02).toInt())
                 }
             }
             PREF_NETWORK_WIFI -> {
                 if (time > learntWifiInterval / 4 * 3) {
-                    val newInterval = (learntWifiInterval * 1.02).toInt()
-                    setSettings(context, Gcm.getContentUri(context)) {
-                        put(Gcm.LEARNT_WIFI, max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL)))
-                    }
+                    setLearntInterval(context, Gcm.LEARNT_WIFI, learntWifiInterval, (learntWifiInterval * 1.02).toInt())
                 }
             }
             else -> {
                 if (time > learntOtherInterval / 4 * 3) {
-                    val newInterval = (learntOtherInterval * 1.02).toInt()
-                    setSettings(context, Gcm.getContentUri(context)) {
-                        put(Gcm.LEARNT_OTHER, max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL)))
-                    }
+                    setLearntInterval(context, Gcm.LEARNT_OTHER, learntOtherInterval, (learntOtherInterval * 1.02).toInt())
                 }
             }
         }
     }
 
+    /**
+     * Stores the learnt interval, unless it doesn't change because it's already at its limit. This is the common case
+     * after a while, so it saves a settings write on every heartbeat.
+     */
+    private fun setLearntInterval(context: Context, key: String, current: Int, newInterval: Int) {
+        val interval = max(MIN_INTERVAL, min(newInterval, MAX_INTERVAL))
+        if (interval == current) return
+        setGcmSettings(context) {
+            put(key, interval)
+        }
+    }
+
     @Suppress("DEPRECATION")
     fun isEnabledFor(info: NetworkInfo?): Boolean {
         return isEnabled && info != null && getHeartbeatMsFor(info) >= 0
     }
 
-    fun extendLastPersistedId(context: Context, id: String) {
-        val newId = if (lastPersistedId.isNullOrEmpty()) id else "$lastPersistedId|$id"
-        setSettings(context, Gcm.getContentUri(context)) {
-            put(Gcm.LAST_PERSISTENT_ID, newId)
-        }
-    }
-
 }
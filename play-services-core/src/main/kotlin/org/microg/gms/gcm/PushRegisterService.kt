@@ -17,44 +17,16 @@ import androidx.lifecycle.Lifecycle
 import androidx.lifecycle.LifecycleOwner
 import androidx.lifecycle.LifecycleService
 import androidx.lifecycle.lifecycleScope
-import org.microg.gms.checkin.CheckinPreferences
-import org.microg.gms.checkin.CheckinService
 import org.microg.gms.checkin.LastCheckinInfo
 import org.microg.gms.common.ForegroundServiceContext
 import org.microg.gms.common.PackageUtils
 import org.microg.gms.gcm.GcmConstants.*
 import org.microg.gms.ui.AskPushPermissionActivity
-import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.coroutines.resume
 import kotlin.coroutines.suspendCoroutine
 
 private const val TAG = "GmsGcmRegister"
 
-private suspend fun ensureCheckinIsUpToDate(context: Context) {
-    if (!CheckinPreferences.isEnabled(context)) throw RuntimeException("Checkin disabled")
-    val lastCheckin = LastCheckinInfo.read(context).lastCheckin
-    if (lastCheckin < System.currentTimeMillis() - CheckinService.MAX_VALID_CHECKIN_AGE) {
-        val resultData: Bundle = suspendCoroutine { continuation ->
-            val intent = Intent(context, CheckinService::class.java)
-            val continued = AtomicBoolean(false)
-            intent.putExtra(CheckinService.EXTRA_RESULT_RECEIVER, object : ResultReceiver(null) {
-                override fun onReceiveResult(resultCode: Int, resultData: Bundle?) {
-                    if (continued.compareAndSet(false, true)) continuation.resume(
-                        resultData ?: Bundle.EMPTY
-                    )
-                }
-            })
-            ForegroundServiceContext(context).startService(intent)
-            Handler().postDelayed({
-                if (continued.compareAndSet(false, true)) continuation.resume(Bundle.EMPTY)
-            }, 10000L)
-        }
-        if (resultData.getLong(CheckinService.EXTRA_NEW_CHECKIN_TIME, 0L) + lastCheckin == 0L) {
-            throw RuntimeException("No checkin available")
-        }
-    }
-}
-
 private suspend fun ensureAppRegistrationAllowed(
     context: Context, database: GcmDatabase, packageName: String
 ) {
@@ -134,14 +106,14 @@ class PushRegisterService : LifecycleService() {
 
     private suspend fun handleIntent(intent: Intent) {
         try {
-            ensureCheckinIsUpToDate(this)
+            val checkin = CheckinGate.await(this)
             if (ACTION_C2DM_UNREGISTER == intent.action || ACTION_C2DM_REGISTER == intent.action && "1" == intent.getStringExtra(
                     EXTRA_DELETE
                 )
             ) {
-                unregister(intent)
+                unregister(intent, checkin)
             } else if (ACTION_C2DM_REGISTER == intent.action) {
-                register(intent)
+                register(intent, checkin)
             }
         } catch (e: Exception) {
             Log.w(TAG, e)
@@ -158,7 +130,7 @@ class PushRegisterService : LifecycleService() {
         sendReply(intent, intent.appPackageName, outIntent)
     }
 
-    private suspend fun register(intent: Intent) {
+    private suspend fun register(intent: Intent, checkin: LastCheckinInfo) {
         val packageName = intent.appPackageName ?: throw RuntimeException("No package provided")
         ensureAppRegistrationAllowed(this, database, packageName)
         Log.d(TAG, "register[req]: " + intent.toString() + " extras=" + intent.extras)
@@ -166,7 +138,7 @@ class PushRegisterService : LifecycleService() {
             this,
             database,
             RegisterRequest().build(this).sender(intent.getStringExtra(EXTRA_SENDER))
-                .checkin(LastCheckinInfo.read(this)).app(packageName).extraParams(intent.extras)
+                .checkin(checkin).app(packageName).extraParams(intent.extras)
         )
 
         val outIntent = Intent(ACTION_C2DM_REGISTRATION)
@@ -175,14 +147,14 @@ class PushRegisterService : LifecycleService() {
         sendReply(intent, packageName, outIntent)
     }
 
-    private suspend fun unregister(intent: Intent) {
+    private suspend fun unregister(intent: Intent, checkin: LastCheckinInfo) {
         val packageName = intent.appPackageName ?: throw RuntimeException("No package provided")
         Log.d(TAG, "unregister[req]: " + intent.toString() + " extras=" + intent.extras)
         val bundle = completeRegisterRequest(
             this,
             database,
             RegisterRequest().build(this).sender(intent.getStringExtra(EXTRA_SENDER))
-                .checkin(LastCheckinInfo.read(this)).app(packageName).extraParams(intent.extras)
+                .checkin(checkin).app(packageName).extraParams(intent.extras)
         )
         val outIntent = Intent(ACTION_C2DM_REGISTRATION)
         outIntent.putExtras(bundle)
@@ -332,13 +304,13 @@ internal class PushRegisterHandler(
                     try {
                         val sender = subdata?.getString("sender")
                         val delete = subdata?.get("delete") != null
-                        ensureCheckinIsUpToDate(context)
+                        val checkin = CheckinGate.await(context)
                         if (!delete) ensureAppRegistrationAllowed(context, database, packageName)
                         val bundle = completeRegisterRequest(
                             context,
                             database,
                             RegisterRequest().build(context).sender(sender)
-                                .checkin(LastCheckinInfo.read(context)).app(packageName)
+                                .checkin(checkin).app(packageName)
                                 .delete(delete).extraParams(subdata)
                         )
                         sendReply(what, id, replyTo, bundle, oneWay)
@@ -0,0 +1,236 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import com.squareup.wire.Message;
+
+import org.microg.gms.gcm.mcs.Close;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.microg.gms.gcm.mcs.HeartbeatAck;
+import org.microg.gms.gcm.mcs.HeartbeatPing;
+import org.microg.gms.gcm.mcs.IqStanza;
+import org.microg.gms.gcm.mcs.LoginRequest;
+import org.microg.gms.gcm.mcs.LoginResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.microg.gms.gcm.McsConstants.MCS_CLOSE_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_HEARTBEAT_ACK_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_HEARTBEAT_PING_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_IQ_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_LOGIN_REQUEST_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_LOGIN_RESPONSE_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
+
+/**
+ * In-process MCS server speaking the varint-framed protocol over TLS on a loopback socket. Its certificate is a self
+ * signed one from the test keystore, clients need to use {@link #createClientContext()} to trust it.
+ * <p>
+ * Connections are served one after another. Login requests are answered with a successful login response and
+ * heartbeat pings with an ack that carries the last stream id received on the connection, which acknowledges all
+ * upstream messages received before. Everything else received from the client is only recorded.
+ */
+class FakeMcsServer implements Closeable {
+    static final long TIMEOUT_MS = 5000;
+    private static final String KEYSTORE = "/mcs-test.p12";
+    private static final char[] KEYSTORE_PASSWORD = "microg".toCharArray();
+
+    private final ServerSocket serverSocket;
+    private final Thread thread;
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+    private volatile int clientVersion = -1;
+    private OutputStream os;
+    private int streamId;
+
+    FakeMcsServer() throws IOException, GeneralSecurityException {
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(loadKeyStore(), KEYSTORE_PASSWORD);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(keyManagerFactory.getKeyManagers(), null, null);
+        serverSocket = context.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        thread = new Thread(this::run, "FakeMcsServer");
+        thread.start();
+    }
+
+    private static KeyStore loadKeyStore() throws IOException, GeneralSecurityException {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        try (InputStream is = FakeMcsServer.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(is, KEYSTORE_PASSWORD);
+        }
+        return keyStore;
+    }
+
+    /**
+     * @return a client context that trusts the certificate of the server.
+     */
+    static SSLContext createClientContext() throws IOException, GeneralSecurityException {
+        TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagerFactory.init(loadKeyStore());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(null, trustManagerFactory.getTrustManagers(), null);
+        return context;
+    }
+
+    /**
+     * Connects to this server like {@link McsService} connects to the MCS server.
+     */
+    Socket connect(McsConnector connector) throws Exception {
+        Socket socket = connector.connect(serverSocket.getInetAddress().getHostAddress(), new int[]{serverSocket.getLocalPort()}, "test");
+        socket.setTcpNoDelay(true);
+        return socket;
+    }
+
+    /**
+     * @return the MCS version sent by the last client or -1 if none connected yet.
+     */
+    int getClientVersion() {
+        return clientVersion;
+    }
+
+    /**
+     * Waits for the next stanza of the given type from the client, stanzas of other types are dropped.
+     */
+    <M extends Message> M take(Class<M> type) throws InterruptedException {
+        return takeFrom(received, type);
+    }
+
+    void send(int tag, Message message) throws IOException {
+        sendAll(tag, Collections.singletonList(message));
+    }
+
+    /**
+     * Sends all stanzas with a single write, like a burst of messages arriving at once.
+     */
+    void sendAll(int tag, List<? extends Message> messages) throws IOException {
+        ByteArrayOutputStream frames = new ByteArrayOutputStream();
+        for (Message message : messages) {
+            writeFrame(frames, tag, message);
+        }
+        write(frames.toByteArray());
+    }
+
+    /**
+     * Sends frames that were encoded with {@link #writeFrame(OutputStream, int, Message)} before.
+     */
+    synchronized void write(byte[] frames) throws IOException {
+        if (os == null) throw new IOException("Not connected");
+        os.write(frames);
+        os.flush();
+    }
+
+    private void run() {
+        while (!serverSocket.isClosed()) {
+            try (Socket socket = serverSocket.accept()) {
+                socket.setTcpNoDelay(true);
+                serve(socket);
+            } catch (IOException e) {
+                // Connection closed by the client or server shut down
+            }
+            synchronized (this) {
+                os = null;
+            }
+        }
+    }
+
+    private void serve(Socket socket) throws IOException {
+        McsFrameReader reader = new McsFrameReader(socket.getInputStream());
+        clientVersion = reader.readByte();
+        if (clientVersion < 0) return;
+        synchronized (this) {
+            os = socket.getOutputStream();
+            streamId = 0;
+            os.write(MCS_VERSION_CODE);
+            os.flush();
+        }
+        while (true) {
+            int tag = reader.readByte();
+            int size = reader.readVarint();
+            if (tag < 0 || size < 0) return;
+            Message message = decode(reader, tag, size);
+            int lastStreamIdReceived;
+            synchronized (this) {
+                lastStreamIdReceived = ++streamId;
+            }
+            received.add(message);
+            if (message instanceof LoginRequest) {
+                send(MCS_LOGIN_RESPONSE_TAG, new LoginResponse.Builder().id(((LoginRequest) message).id).build());
+            } else if (message instanceof HeartbeatPing) {
+                send(MCS_HEARTBEAT_ACK_TAG, new HeartbeatAck.Builder().last_stream_id_received(lastStreamIdReceived).build());
+            }
+        }
+    }
+
+    private static Message decode(McsFrameReader reader, int tag, int size) throws IOException {
+        switch (tag) {
+            case MCS_HEARTBEAT_PING_TAG:
+                return reader.decode(HeartbeatPing.ADAPTER, size);
+            case MCS_HEARTBEAT_ACK_TAG:
+                return reader.decode(HeartbeatAck.ADAPTER, size);
+            case MCS_LOGIN_REQUEST_TAG:
+                return reader.decode(LoginRequest.ADAPTER, size);
+            case MCS_CLOSE_TAG:
+                return reader.decode(Close.ADAPTER, size);
+            case MCS_IQ_STANZA_TAG:
+                return reader.decode(IqStanza.ADAPTER, size);
+            case MCS_DATA_MESSAGE_STANZA_TAG:
+                return reader.decode(DataMessageStanza.ADAPTER, size);
+            default:
+                throw new IOException("Unexpected tag " + tag);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        synchronized (this) {
+            if (os != null) os.close();
+        }
+        try {
+            thread.join(TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    static void writeFrame(OutputStream os, int tag, Message message) throws IOException {
+        os.write(tag);
+        int size = message.adapter().encodedSize(message);
+        while ((size & ~0x7F) != 0) {
+            os.write((size & 0x7F) | 0x80);
+            size >>>= 7;
+        }
+        os.write(size);
+        message.encode(os);
+    }
+
+    static <M extends Message> M takeFrom(BlockingQueue<Message> queue, Class<M> type) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (true) {
+            Message message = queue.poll(deadline - System.currentTimeMillis(), MILLISECONDS);
+            if (message == null) throw new AssertionError("No " + type.getSimpleName() + " received");
+            if (type.isInstance(message)) return type.cast(message);
+        }
+    }
+}
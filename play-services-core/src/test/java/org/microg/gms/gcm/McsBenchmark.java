@@ -0,0 +1,229 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.squareup.wire.Message;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.gms.gcm.mcs.AppData;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.microg.gms.gcm.mcs.IqStanza;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.Semaphore;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import static org.microg.gms.gcm.FakeMcsServer.TIMEOUT_MS;
+import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
+
+/**
+ * Benchmarks of connection setup, heartbeats and message throughput against {@link FakeMcsServer}.
+ * <p>
+ * Results are printed rather than asserted on, as they depend on the machine running the tests. The first rounds of
+ * each benchmark are not measured, so that the JIT compiler has warmed up. Benchmarks are skipped unless requested by
+ * running the unit tests with {@code -Pbenchmark}.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class McsBenchmark {
+    private static final int WARMUP = 10;
+    private static final int CONNECTIONS = 50;
+    private static final int HEARTBEATS = 500;
+    private static final int BURSTS = 20;
+    private static final int BURST_SIZE = 500;
+    private static final int UPSTREAM_MESSAGES = 5000;
+
+    private FakeMcsServer server;
+    private McsConnector connector;
+    private PersistentIdLedger persistentIds;
+    private AckScheduler ackScheduler;
+    private UpstreamOutbox outbox;
+
+    @Before
+    public void setUp() throws Exception {
+        assumeTrue("Benchmarks not requested", Boolean.getBoolean("mcs.benchmark"));
+        Context context = RuntimeEnvironment.getApplication();
+        server = new FakeMcsServer();
+        connector = new McsConnector(FakeMcsServer.createClientContext());
+        persistentIds = new PersistentIdLedger(context);
+        ackScheduler = new AckScheduler(persistentIds, new Handler(Looper.getMainLooper()));
+        outbox = new UpstreamOutbox(context);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (server == null) return;
+        server.close();
+        persistentIds.close();
+    }
+
+    private static DataMessageStanza dataMessage(int index) {
+        return new DataMessageStanza.Builder()
+                .from("test")
+                .category("org.example")
+                .persistent_id("0:" + index)
+                .app_data(Collections.singletonList(new AppData.Builder().key("index").value_(Integer.toString(index)).build()))
+                .build();
+    }
+
+    @Test
+    public void connectAndLogin() throws Exception {
+        long[] times = new long[CONNECTIONS];
+        for (int i = -WARMUP; i < CONNECTIONS; i++) {
+            long start = System.nanoTime();
+            try (McsTestClient client = new McsTestClient(server.connect(connector), ackScheduler, outbox)) {
+                client.start();
+                client.login();
+                if (i >= 0) times[i] = System.nanoTime() - start;
+            }
+        }
+        report("connect and login", times);
+    }
+
+    @Test
+    public void heartbeatRoundTrip() throws Exception {
+        long[] times = new long[HEARTBEATS];
+        try (McsTestClient client = new McsTestClient(server.connect(connector), ackScheduler, outbox)) {
+            client.start();
+            client.login();
+            for (int i = -WARMUP; i < HEARTBEATS; i++) {
+                long start = System.nanoTime();
+                client.heartbeat();
+                if (i >= 0) times[i] = System.nanoTime() - start;
+            }
+        }
+        report("heartbeat round trip", times);
+    }
+
+    /**
+     * Delivers bursts of messages written at once, like after a reconnect, and acknowledges each burst before the
+     * next is sent. Latency is measured from writing a burst to the dispatch of each of its messages.
+     */
+    @Test
+    public void downstreamBursts() throws Exception {
+        byte[][] bursts = new byte[WARMUP + BURSTS][];
+        for (int b = 0; b < bursts.length; b++) {
+            ByteArrayOutputStream frames = new ByteArrayOutputStream();
+            for (int i = 0; i < BURST_SIZE; i++) {
+                FakeMcsServer.writeFrame(frames, MCS_DATA_MESSAGE_STANZA_TAG, dataMessage(b * BURST_SIZE + i));
+            }
+            bursts[b] = frames.toByteArray();
+        }
+        long[] receivedAt = new long[bursts.length * BURST_SIZE];
+        Semaphore burstsReceived = new Semaphore(0);
+        McsTestClient client = new McsTestClient(server.connect(connector), ackScheduler, outbox) {
+            private int count;
+
+            @Override
+            protected void onReceived(Message message) {
+                if (!(message instanceof DataMessageStanza)) {
+                    super.onReceived(message);
+                    return;
+                }
+                receivedAt[count++] = System.nanoTime();
+                if (count % BURST_SIZE == 0) burstsReceived.release();
+            }
+        };
+        long[] latencies = new long[BURSTS * BURST_SIZE];
+        long duration = 0;
+        long allocatedBefore = 0;
+        try {
+            client.start();
+            client.login();
+            long inputThreadId = client.getInputStream().getId();
+            for (int b = 0; b < bursts.length; b++) {
+                if (b == WARMUP) allocatedBefore = getThreadAllocatedBytes(inputThreadId);
+                long sentAt = System.nanoTime();
+                server.write(bursts[b]);
+                assertTrue(burstsReceived.tryAcquire(TIMEOUT_MS, MILLISECONDS));
+                if (b >= WARMUP) {
+                    for (int i = 0; i < BURST_SIZE; i++) {
+                        latencies[(b - WARMUP) * BURST_SIZE + i] = receivedAt[b * BURST_SIZE + i] - sentAt;
+                    }
+                    duration += receivedAt[(b + 1) * BURST_SIZE - 1] - sentAt;
+                }
+                client.sendAck();
+                client.takeWritten(IqStanza.class);
+            }
+            System.out.println(String.format(Locale.ROOT, "MCS downstream: %.0f messages/s", latencies.length * 1e9 / duration));
+            long allocatedAfter = getThreadAllocatedBytes(inputThreadId);
+            if (allocatedBefore >= 0 && allocatedAfter >= 0) {
+                System.out.println(String.format(Locale.ROOT, "MCS downstream: %d bytes allocated per message on input thread",
+                        (allocatedAfter - allocatedBefore) / latencies.length));
+            }
+        } finally {
+            client.close();
+        }
+        report("downstream delivery", latencies);
+    }
+
+    @Test
+    public void upstreamThroughput() throws Exception {
+        DataMessageStanza[] messages = new DataMessageStanza[UPSTREAM_MESSAGES];
+        for (int i = 0; i < messages.length; i++) {
+            messages[i] = dataMessage(i);
+        }
+        try (McsTestClient client = new McsTestClient(server.connect(connector), ackScheduler, outbox)) {
+            client.start();
+            client.login();
+            sendUpstream(client, messages);
+            long start = System.nanoTime();
+            sendUpstream(client, messages);
+            long duration = System.nanoTime() - start;
+            System.out.println(String.format(Locale.ROOT, "MCS upstream: %.0f messages/s", messages.length * 1e9 / duration));
+        }
+    }
+
+    private void sendUpstream(McsTestClient client, DataMessageStanza[] messages) throws InterruptedException {
+        for (DataMessageStanza message : messages) {
+            client.enqueue(MCS_DATA_MESSAGE_STANZA_TAG, message);
+        }
+        client.flush();
+        for (int i = 0; i < messages.length; i++) {
+            server.take(DataMessageStanza.class);
+        }
+    }
+
+    /**
+     * @return the bytes allocated by the thread so far, or -1 if the JVM can't tell.
+     */
+    private static long getThreadAllocatedBytes(long threadId) {
+        try {
+            // Extension of the HotSpot and OpenJ9 management API, not available everywhere
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (long) method.invoke(ManagementFactory.getThreadMXBean(), threadId);
+        } catch (ReflectiveOperationException | IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static void report(String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format(Locale.ROOT, "MCS %s: p50=%.3fms p90=%.3fms p99=%.3fms max=%.3fms", name,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99), sorted[sorted.length - 1] / 1e6));
+    }
+
+    private static double percentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) (p * sorted.length))] / 1e6;
+    }
+}
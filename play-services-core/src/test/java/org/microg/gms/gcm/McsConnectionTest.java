@@ -0,0 +1,184 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.microg.gms.gcm.mcs.IqStanza;
+import org.microg.gms.gcm.mcs.LoginResponse;
+import org.microg.gms.gcm.mcs.SelectiveAck;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_VERSION_CODE;
+import static org.microg.gms.gcm.McsConstants.MSG_ACK;
+
+@RunWith(RobolectricTestRunner.class)
+public class McsConnectionTest {
+    private static final int EXTENSION_SELECTIVE_ACK = 12;
+
+    private FakeMcsServer server;
+    private McsConnector connector;
+    private PersistentIdLedger persistentIds;
+    private Handler ackHandler;
+    private AckScheduler ackScheduler;
+    private UpstreamOutbox outbox;
+    private final List<McsTestClient> clients = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        Context context = RuntimeEnvironment.getApplication();
+        server = new FakeMcsServer();
+        connector = new McsConnector(FakeMcsServer.createClientContext());
+        persistentIds = new PersistentIdLedger(context);
+        ackHandler = new Handler(Looper.getMainLooper());
+        ackScheduler = new AckScheduler(persistentIds, ackHandler);
+        outbox = new UpstreamOutbox(context);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (McsTestClient client : clients) {
+            client.close();
+        }
+        server.close();
+        persistentIds.close();
+    }
+
+    private McsTestClient connect() throws Exception {
+        McsTestClient client = new McsTestClient(server.connect(connector), ackScheduler, outbox);
+        clients.add(client);
+        client.start();
+        return client;
+    }
+
+    private static DataMessageStanza dataMessage(String persistentId) {
+        return new DataMessageStanza.Builder()
+                .from("test")
+                .category("org.example")
+                .persistent_id(persistentId)
+                .build();
+    }
+
+    @Test
+    public void logsInAndExchangesHeartbeats() throws Exception {
+        McsTestClient client = connect();
+
+        LoginResponse response = client.login();
+        assertNull(response.error);
+        assertEquals(MCS_VERSION_CODE, server.getClientVersion());
+
+        for (int i = 0; i < 3; i++) {
+            assertNotNull(client.heartbeat());
+        }
+    }
+
+    @Test
+    public void countsTlsHandshakes() throws Exception {
+        McsTestClient client = connect();
+        client.login();
+        assertEquals(1, connector.getHandshakeCount());
+        // A new session, not one from the cache
+        assertFalse(connector.isLastHandshakeResumed());
+        client.close();
+
+        connect().login();
+        assertEquals(2, connector.getHandshakeCount());
+    }
+
+    @Test
+    public void acknowledgesReceivedMessages() throws Exception {
+        McsTestClient client = connect();
+        client.login();
+        List<String> ids = Arrays.asList("0:1", "0:2", "0:3");
+        List<DataMessageStanza> messages = new ArrayList<>();
+        for (String id : ids) {
+            messages.add(dataMessage(id));
+        }
+
+        server.sendAll(MCS_DATA_MESSAGE_STANZA_TAG, messages);
+        for (DataMessageStanza message : messages) {
+            assertEquals(message, client.take(DataMessageStanza.class));
+        }
+        assertTrue(ackHandler.hasMessages(MSG_ACK));
+
+        IqStanza sent = client.sendAck();
+        assertNotNull(sent);
+        IqStanza ack = server.take(IqStanza.class);
+        assertEquals(EXTENSION_SELECTIVE_ACK, (int) ack.extension.id);
+        assertEquals(ids, SelectiveAck.ADAPTER.decode(ack.extension.data_).id);
+        // Login response and three messages
+        assertEquals(4, (int) ack.last_stream_id_received);
+
+        assertSame(sent, client.takeWritten(IqStanza.class));
+        // Kept until the server confirmed receiving the ack
+        assertEquals(ids, persistentIds.getIds());
+        client.heartbeat();
+        assertTrue(persistentIds.getIds().isEmpty());
+    }
+
+    @Test
+    public void keepsIdsOfUnsentAck() throws Exception {
+        McsTestClient client = connect();
+        client.login();
+        server.send(MCS_DATA_MESSAGE_STANZA_TAG, dataMessage("0:1"));
+        client.take(DataMessageStanza.class);
+        // Connection lost before the ack was written
+        assertNotNull(ackScheduler.buildAck(client.getInputStream()));
+        client.close();
+
+        McsTestClient next = connect();
+        next.login();
+        server.send(MCS_DATA_MESSAGE_STANZA_TAG, dataMessage("0:2"));
+        next.take(DataMessageStanza.class);
+        assertNotNull(next.sendAck());
+        assertEquals(Arrays.asList("0:1", "0:2"), SelectiveAck.ADAPTER.decode(server.take(IqStanza.class).extension.data_).id);
+    }
+
+    @Test
+    public void resendsUnacknowledgedUpstreamMessages() throws Exception {
+        long now = System.currentTimeMillis();
+        DataMessageStanza upstream = new DataMessageStanza.Builder().from("test").category("org.example").id("1").ttl(60).build();
+        UpstreamOutbox.Entry entry = new UpstreamOutbox.Entry("org.example", "1", now, now + 60000, upstream);
+        assertTrue(outbox.add(entry));
+
+        McsTestClient client = connect();
+        client.login();
+        client.flushOutbox();
+        assertEquals(upstream, server.take(DataMessageStanza.class));
+        client.takeWritten(DataMessageStanza.class);
+        client.close();
+
+        // Not acknowledged before the connection was lost
+        McsTestClient next = connect();
+        next.login();
+        next.flushOutbox();
+        assertEquals(upstream, server.take(DataMessageStanza.class));
+        next.takeWritten(DataMessageStanza.class);
+        next.heartbeat();
+        assertSame(entry, next.takeAcknowledged());
+        assertEquals(-1, outbox.getNextDeadline());
+    }
+}
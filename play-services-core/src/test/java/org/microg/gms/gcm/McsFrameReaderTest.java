@@ -0,0 +1,113 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import org.junit.Test;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.microg.gms.gcm.mcs.HeartbeatPing;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+
+import okio.ByteString;
+
+import static org.junit.Assert.assertEquals;
+import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_HEARTBEAT_PING_TAG;
+
+public class McsFrameReaderTest {
+    private static final int UNKNOWN_TAG = 99;
+
+    private static DataMessageStanza dataMessage(String persistentId, int rawDataSize) {
+        return new DataMessageStanza.Builder()
+                .from("test")
+                .category("org.example")
+                .persistent_id(persistentId)
+                .raw_data(ByteString.of(new byte[rawDataSize]))
+                .build();
+    }
+
+    /**
+     * Returns at most one byte per read, so every frame ends up split across reads.
+     */
+    private static InputStream slowStream(byte[] data) {
+        return new ByteArrayInputStream(data) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+
+    @Test
+    public void readsFramesSplitAcrossReads() throws IOException {
+        DataMessageStanza first = dataMessage("0:1", 10);
+        HeartbeatPing second = new HeartbeatPing.Builder().last_stream_id_received(1).build();
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        FakeMcsServer.writeFrame(os, MCS_DATA_MESSAGE_STANZA_TAG, first);
+        FakeMcsServer.writeFrame(os, MCS_HEARTBEAT_PING_TAG, second);
+
+        McsFrameReader reader = new McsFrameReader(slowStream(os.toByteArray()));
+        assertEquals(MCS_DATA_MESSAGE_STANZA_TAG, reader.readByte());
+        assertEquals(first, reader.decode(DataMessageStanza.ADAPTER, reader.readVarint()));
+        assertEquals(MCS_HEARTBEAT_PING_TAG, reader.readByte());
+        assertEquals(second, reader.decode(HeartbeatPing.ADAPTER, reader.readVarint()));
+        assertEquals(-1, reader.readByte());
+    }
+
+    @Test
+    public void readsFramesLargerThanBuffer() throws IOException {
+        DataMessageStanza message = dataMessage("0:1", 64 * 1024);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        FakeMcsServer.writeFrame(os, MCS_DATA_MESSAGE_STANZA_TAG, message);
+        FakeMcsServer.writeFrame(os, MCS_DATA_MESSAGE_STANZA_TAG, message);
+
+        McsFrameReader reader = new McsFrameReader(new ByteArrayInputStream(os.toByteArray()));
+        for (int i = 0; i < 2; i++) {
+            assertEquals(MCS_DATA_MESSAGE_STANZA_TAG, reader.readByte());
+            assertEquals(message, reader.decode(DataMessageStanza.ADAPTER, reader.readVarint()));
+        }
+    }
+
+    @Test
+    public void skipsUnknownFrames() throws IOException {
+        DataMessageStanza message = dataMessage("0:1", 10);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        FakeMcsServer.writeFrame(os, UNKNOWN_TAG, dataMessage("0:0", 20000));
+        FakeMcsServer.writeFrame(os, MCS_DATA_MESSAGE_STANZA_TAG, message);
+
+        McsFrameReader reader = new McsFrameReader(new ByteArrayInputStream(os.toByteArray()));
+        assertEquals(UNKNOWN_TAG, reader.readByte());
+        reader.skip(reader.readVarint());
+        assertEquals(MCS_DATA_MESSAGE_STANZA_TAG, reader.readByte());
+        assertEquals(message, reader.decode(DataMessageStanza.ADAPTER, reader.readVarint()));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOversizedFrames() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        FakeMcsServer.writeFrame(os, MCS_DATA_MESSAGE_STANZA_TAG, dataMessage("0:1", McsFrameReader.MAX_FRAME_SIZE));
+
+        McsFrameReader reader = new McsFrameReader(new ByteArrayInputStream(os.toByteArray()));
+        reader.readByte();
+        reader.decode(DataMessageStanza.ADAPTER, reader.readVarint());
+    }
+
+    @Test(expected = EOFException.class)
+    public void failsOnTruncatedFrame() throws IOException {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        FakeMcsServer.writeFrame(os, MCS_DATA_MESSAGE_STANZA_TAG, dataMessage("0:1", 100));
+        byte[] data = os.toByteArray();
+
+        McsFrameReader reader = new McsFrameReader(new ByteArrayInputStream(data, 0, data.length - 1));
+        reader.readByte();
+        reader.decode(DataMessageStanza.ADAPTER, reader.readVarint());
+    }
+}
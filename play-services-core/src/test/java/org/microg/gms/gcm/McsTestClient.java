@@ -0,0 +1,197 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.squareup.wire.Message;
+
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.microg.gms.gcm.mcs.HeartbeatAck;
+import org.microg.gms.gcm.mcs.HeartbeatPing;
+import org.microg.gms.gcm.mcs.IqStanza;
+import org.microg.gms.gcm.mcs.LoginRequest;
+import org.microg.gms.gcm.mcs.LoginResponse;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.microg.gms.gcm.FakeMcsServer.TIMEOUT_MS;
+import static org.microg.gms.gcm.McsConstants.MCS_DATA_MESSAGE_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_HEARTBEAT_PING_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_IQ_STANZA_TAG;
+import static org.microg.gms.gcm.McsConstants.MCS_LOGIN_REQUEST_TAG;
+import static org.microg.gms.gcm.McsConstants.MSG_INPUT;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_DONE;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_FLUSH;
+import static org.microg.gms.gcm.McsConstants.MSG_OUTPUT_READY;
+
+/**
+ * Client side of a connection, wired to {@link McsInputStream}, {@link McsOutputStream}, {@link AckScheduler} and
+ * {@link UpstreamOutbox} like in {@link McsService}, without the service around it.
+ */
+class McsTestClient implements Handler.Callback, Closeable {
+    private final Socket socket;
+    private final AckScheduler ackScheduler;
+    private final UpstreamOutbox outbox;
+    private final Handler handler = new Handler(Looper.getMainLooper(), this);
+    private final CountDownLatch outputReady = new CountDownLatch(1);
+    private final BlockingQueue<Message> received = new LinkedBlockingQueue<>();
+    private final BlockingQueue<Message> written = new LinkedBlockingQueue<>();
+    private final BlockingQueue<UpstreamOutbox.Entry> acknowledged = new LinkedBlockingQueue<>();
+    private McsInputStream inputStream;
+    private McsOutputStream outputStream;
+    private long loggedInSince;
+
+    McsTestClient(Socket socket, AckScheduler ackScheduler, UpstreamOutbox outbox) {
+        this.socket = socket;
+        this.ackScheduler = ackScheduler;
+        this.outbox = outbox;
+    }
+
+    void start() throws IOException, InterruptedException {
+        ackScheduler.reset();
+        outbox.onDisconnected();
+        inputStream = new McsInputStream(socket.getInputStream(), handler);
+        outputStream = new McsOutputStream(socket.getOutputStream(), handler);
+        inputStream.start();
+        outputStream.start();
+        if (!outputReady.await(TIMEOUT_MS, MILLISECONDS)) throw new AssertionError("Output stream not ready");
+    }
+
+    McsInputStream getInputStream() {
+        return inputStream;
+    }
+
+    void send(int tag, Message message) {
+        enqueue(tag, message);
+        flush();
+    }
+
+    void enqueue(int tag, Message message) {
+        Handler outputHandler = outputStream.getHandler();
+        outputHandler.sendMessage(outputHandler.obtainMessage(MSG_OUTPUT, tag, 0, message));
+    }
+
+    /**
+     * Writes all enqueued stanzas. The coalescing window of the output stream is not used, as it's measured with
+     * {@link android.os.SystemClock}, which doesn't advance on its own in Robolectric. The flush is posted as a
+     * runnable, so that it isn't dropped when the output stream flushes a full batch before.
+     */
+    void flush() {
+        Handler outputHandler = outputStream.getHandler();
+        outputHandler.post(() -> outputStream.handleMessage(outputHandler.obtainMessage(MSG_OUTPUT_FLUSH)));
+    }
+
+    LoginResponse login() throws InterruptedException {
+        send(MCS_LOGIN_REQUEST_TAG, new LoginRequest.Builder()
+                .auth_service(LoginRequest.AuthService.ANDROID_ID)
+                .auth_token("1")
+                .id("android-test")
+                .domain("mcs.android.com")
+                .device_id("android-1")
+                .resource("1")
+                .user("1")
+                .use_rmq2(true)
+                .build());
+        LoginResponse response = take(LoginResponse.class);
+        loggedInSince = System.currentTimeMillis();
+        return response;
+    }
+
+    HeartbeatAck heartbeat() throws InterruptedException {
+        HeartbeatPing.Builder ping = new HeartbeatPing.Builder();
+        if (inputStream.newStreamIdAvailable()) {
+            ping.last_stream_id_received(inputStream.getStreamId());
+        }
+        send(MCS_HEARTBEAT_PING_TAG, ping.build());
+        return take(HeartbeatAck.class);
+    }
+
+    /**
+     * @return the ack sent or null if there was nothing to acknowledge.
+     */
+    IqStanza sendAck() {
+        IqStanza ack = ackScheduler.buildAck(inputStream);
+        if (ack != null) send(MCS_IQ_STANZA_TAG, ack);
+        return ack;
+    }
+
+    void flushOutbox() {
+        for (UpstreamOutbox.Entry entry : outbox.takeDue(System.currentTimeMillis(), loggedInSince, outputStream)) {
+            send(MCS_DATA_MESSAGE_STANZA_TAG, entry.stanza);
+        }
+    }
+
+    /**
+     * Waits for the next stanza of the given type from the server, stanzas of other types are dropped.
+     */
+    <M extends Message> M take(Class<M> type) throws InterruptedException {
+        return FakeMcsServer.takeFrom(received, type);
+    }
+
+    /**
+     * Waits until the next stanza of the given type was written to the socket.
+     */
+    <M extends Message> M takeWritten(Class<M> type) throws InterruptedException {
+        return FakeMcsServer.takeFrom(written, type);
+    }
+
+    UpstreamOutbox.Entry takeAcknowledged() throws InterruptedException {
+        UpstreamOutbox.Entry entry = acknowledged.poll(TIMEOUT_MS, MILLISECONDS);
+        if (entry == null) throw new AssertionError("No upstream message acknowledged");
+        return entry;
+    }
+
+    /**
+     * Called on the input thread for every stanza received.
+     */
+    protected void onReceived(Message message) {
+        received.add(message);
+    }
+
+    @Override
+    public boolean handleMessage(android.os.Message msg) {
+        switch (msg.what) {
+            case MSG_INPUT:
+                Message message = (Message) msg.obj;
+                if (message instanceof DataMessageStanza) {
+                    ackScheduler.onMessage(((DataMessageStanza) message).persistent_id);
+                }
+                Integer lastStreamIdReceived = McsService.getLastStreamIdReceived(message);
+                if (lastStreamIdReceived != null) {
+                    ackScheduler.onServerAcknowledged(lastStreamIdReceived);
+                    acknowledged.addAll(outbox.onAcknowledged(lastStreamIdReceived));
+                }
+                onReceived(message);
+                return true;
+            case MSG_OUTPUT_READY:
+                outputReady.countDown();
+                return true;
+            case MSG_OUTPUT_DONE:
+                if (msg.arg1 == MCS_IQ_STANZA_TAG) ackScheduler.onWritten(msg.obj, msg.arg2);
+                if (msg.arg1 == MCS_DATA_MESSAGE_STANZA_TAG) outbox.onSent(msg.obj, msg.arg2, Thread.currentThread());
+                written.add((Message) msg.obj);
+                return true;
+        }
+        // Errors and teardown are expected when the connection is closed
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (inputStream != null) inputStream.close();
+        if (outputStream != null) outputStream.close();
+        socket.close();
+    }
+}
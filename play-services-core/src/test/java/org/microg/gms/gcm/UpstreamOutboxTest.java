@@ -0,0 +1,64 @@
+/*
+ * SPDX-FileCopyrightText: 2026 microG Project Team
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.microg.gms.gcm;
+
+import android.content.Context;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.microg.gms.gcm.mcs.DataMessageStanza;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class UpstreamOutboxTest {
+    private Context context;
+    private UpstreamOutbox outbox;
+    private UpstreamOutbox.Entry entry;
+    private long now;
+
+    @Before
+    public void setUp() {
+        context = RuntimeEnvironment.getApplication();
+        outbox = new UpstreamOutbox(context);
+        now = System.currentTimeMillis();
+        DataMessageStanza stanza = new DataMessageStanza.Builder().from("test").category("org.example").id("1").ttl(60).build();
+        entry = new UpstreamOutbox.Entry("org.example", "1", now, now + 60000, stanza);
+        assertTrue(outbox.add(entry));
+    }
+
+    @Test
+    public void ignoresWritesOnPreviousConnection() {
+        Object previous = new Object();
+        Object current = new Object();
+        assertEquals(Collections.singletonList(entry), outbox.takeDue(now, now, previous));
+        outbox.onDisconnected();
+        assertEquals(Collections.singletonList(entry), outbox.takeDue(now, now, current));
+
+        // Write on the previous connection completed after the reconnect
+        outbox.onSent(entry.stanza, 1, previous);
+        assertTrue(outbox.onAcknowledged(1).isEmpty());
+
+        outbox.onSent(entry.stanza, 2, current);
+        assertEquals(Collections.singletonList(entry), outbox.onAcknowledged(2));
+    }
+
+    @Test
+    public void keepsMessagesAcrossRestarts() {
+        outbox.flush();
+
+        UpstreamOutbox restored = new UpstreamOutbox(context);
+        UpstreamOutbox.Entry restoredEntry = restored.takeDue(now, now, new Object()).get(0);
+        assertEquals(entry.messageId, restoredEntry.messageId);
+        assertEquals(entry.stanza, restoredEntry.stanza);
+    }
+}